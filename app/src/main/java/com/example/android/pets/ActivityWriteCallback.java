@@ -0,0 +1,117 @@
+package com.example.android.pets;
+
+import android.arch.lifecycle.Lifecycle;
+import android.support.v7.app.AppCompatActivity;
+
+import com.example.android.pets.data.PetWriter;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Pet write callback bound to the activity showing the write.
+ *
+ * The write may end while the activity is being recreated, after a rotation for instance. The
+ * callback is kept by a PendingWriteModel across the change, and holds the activity weakly: the
+ * result is kept until the new activity attaches itself, then delivered to it. It's dropped if
+ * the activity is closed for good.
+ *
+ * Everything runs on the main thread.
+ *
+ * @param <A> Type of the activity.
+ */
+abstract class ActivityWriteCallback<A extends AppCompatActivity> implements PetWriter.Callback {
+
+    /**
+     * Activity showing the write, replaced by the new one after a configuration change
+     */
+    private WeakReference<A> activityReference;
+
+    /**
+     * Result waiting for a live activity: whether it came, whether the write failed, and how
+     */
+    private boolean resultReceived;
+    private boolean failed;
+    private int nbPetsWritten;
+    private Exception failure;
+
+    /**
+     * Whether the result was delivered to an activity
+     */
+    private boolean delivered;
+
+    ActivityWriteCallback(A activity) {
+        activityReference = new WeakReference<>(activity);
+    }
+
+    @Override
+    public final void onWriteDone(int nbPetsWritten) {
+        this.nbPetsWritten = nbPetsWritten;
+        resultReceived = true;
+        deliver();
+    }
+
+    @Override
+    public final void onWriteFailed(Exception e) {
+        failed = true;
+        failure = e;
+        resultReceived = true;
+        deliver();
+    }
+
+    /**
+     * Show the write in a new instance of the activity, and deliver its result if it came while
+     * there was none.
+     */
+    @SuppressWarnings("unchecked")
+    final void attach(AppCompatActivity activity) {
+        activityReference = new WeakReference<>((A) activity);
+        deliver();
+    }
+
+    /**
+     * @return whether the result of the write is yet to be delivered.
+     */
+    final boolean isPending() {
+        return !delivered;
+    }
+
+    /**
+     * @param activity      Activity showing the write, still alive.
+     * @param nbPetsWritten Number of pets written.
+     */
+    abstract void onWriteDone(A activity, int nbPetsWritten);
+
+    /**
+     * @param activity Activity showing the write, still alive.
+     * @param e        Why the write failed.
+     */
+    abstract void onWriteFailed(A activity, Exception e);
+
+    /**
+     * Deliver the result once, if it came and the activity is alive.
+     */
+    private void deliver() {
+        A activity = getActivity();
+        if (!resultReceived || delivered || activity == null) {
+            return;
+        }
+        delivered = true;
+        if (failed) {
+            onWriteFailed(activity, failure);
+        } else {
+            onWriteDone(activity, nbPetsWritten);
+        }
+    }
+
+    /**
+     * @return the activity, or null if it's gone or going.
+     */
+    private A getActivity() {
+        A activity = activityReference.get();
+        if (activity == null || activity.isFinishing() ||
+                activity.getLifecycle().getCurrentState() == Lifecycle.State.DESTROYED) {
+            return null;
+        }
+        return activity;
+    }
+}
@@ -16,40 +16,95 @@
 package com.example.android.pets;
 
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.Toast;
 
+import com.example.android.pets.PetListAdapter.PetItem;
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetWriter;
 import com.example.android.pets.data.PetContract.PetEntry;
 
+import java.util.List;
+
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements PetListAdapter.OnPetClickListener {
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
+    /**
+     * Loader IDs: the pet list, and the search results.
+     */
+    private static final int PET_LIST_LOADER = 0;
+    private static final int PET_SEARCH_LOADER = 1;
+
+    /**
+     * Number of pets loaded per page, and how close to the end of the list the user has to
+     * scroll for the next page to be loaded.
+     */
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 15;
 
     /**
-     * Pet loader ID.
+     * Maximum number of search results shown.
      */
-    private static final int PET_LOADER = 0;
+    private static final int SEARCH_LIMIT = 100;
 
     /**
      * Pet adapter -- that binds UI to underlying pet database.
      */
-    PetCursorAdapter petCursorAdapter;
+    PetListAdapter petListAdapter;
+
+    /**
+     * View shown instead of the pet list when there are no pets.
+     */
+    private View emptyView;
+
+    /**
+     * Text typed in the search box -- empty when the full list of pets is shown.
+     */
+    private String searchQuery = "";
+
+    /**
+     * Recycler view of the pet list.
+     */
+    private RecyclerView petListView;
+
+    /**
+     * Delete of all pets waiting to be written, kept across configuration changes
+     */
+    private PendingWriteModel pendingWrite;
+
+    /**
+     * Time the activity was created, and whether the time to show the first list was reported.
+     */
+    private long createdAtMs;
+    private boolean firstListReported;
 
     /**
      * Method called when activity is created to set its content and create the app database.
@@ -59,6 +114,7 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAtMs = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_catalog);
 
         // Setup FAB to open EditorActivity
@@ -71,80 +127,199 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        // Get list view to populate with pet data
-        ListView petListView = findViewById(R.id.pet_list_view);
+        // Get recycler view to populate with pet data
+        petListView = findViewById(R.id.pet_list_view);
+        final LinearLayoutManager petLayoutManager = new LinearLayoutManager(this);
+        petListView.setLayoutManager(petLayoutManager);
 
-        // Bind empty view to pet list view -- so that it shows only when the list has 0 pets.
-        View emptyView = findViewById(R.id.empty_view);
-        petListView.setEmptyView(emptyView);
+        // Get empty view -- shown only when the list has 0 pets.
+        emptyView = findViewById(R.id.empty_view);
 
-        // Setup pet adapter to create a list item for each row of pet data in the cursor
-        // There is no pet data yet (until the loader finishes), so pass in null for the cursor
-        petCursorAdapter = new PetCursorAdapter(this, null);
-        petListView.setAdapter(petCursorAdapter);
+        // Setup pet adapter to create a list item for each pet
+        // There is no pet data yet (until the loader finishes), so the list starts empty
+        petListAdapter = new PetListAdapter(this);
+        petListView.setAdapter(petListAdapter);
 
-        // Set up pet list item click listener
-        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Load the next page of pets as the user nears the end of the list
+        petListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onItemClick(AdapterView<?> petListView, View clickedItem, int positionItem, long rowIdItem) {
-                // Create intent for opening editor when pet is clicked
-                Intent openPetEditorIntent = new Intent(CatalogActivity.this, EditorActivity.class);
+            public void onScrolled(RecyclerView petListView, int dx, int dy) {
+                int lastVisibleItem = petLayoutManager.findLastVisibleItemPosition();
+                if (lastVisibleItem >= petLayoutManager.getItemCount() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
 
-                // For URI representing specific pet clicked
-                Uri clickedPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, rowIdItem);
+        // Initialize the loader of the pet list
+        getSupportLoaderManager().initLoader(PET_LIST_LOADER, null, petListCallbacks);
 
-                // Set the URI on the data field of the intent
-                openPetEditorIntent.setData(clickedPetUri);
+        // Offer to undo a delete that ended while the activity was being recreated
+        pendingWrite = PendingWriteModel.of(this);
+    }
 
-                // Open editor for clicked pet
-                startActivity(openPetEditorIntent);
-            }
-        });
+    /**
+     * Open the editor for the clicked pet.
+     *
+     * @param petId _id of the clicked pet.
+     */
+    @Override
+    public void onPetClick(long petId) {
+        // Create intent for opening editor when pet is clicked
+        Intent openPetEditorIntent = new Intent(CatalogActivity.this, EditorActivity.class);
+
+        // For URI representing specific pet clicked
+        Uri clickedPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, petId);
 
-        // Initialize the pet loader
-        getSupportLoaderManager().initLoader(PET_LOADER, null, this);
+        // Set the URI on the data field of the intent
+        openPetEditorIntent.setData(clickedPetUri);
+
+        // Open editor for clicked pet
+        startActivity(openPetEditorIntent);
     }
 
-    // Implement cursor loader interface
+    /**
+     * Start loading the page after the loaded pets, unless searching.
+     */
+    private void loadNextPage() {
+        // Search results aren't paged
+        if (!TextUtils.isEmpty(searchQuery)) {
+            return;
+        }
+        Loader<List<PetItem>> petListLoader = getSupportLoaderManager().getLoader(PET_LIST_LOADER);
+        if (petListLoader != null) {
+            ((PetListLoader) petListLoader).loadNextPage();
+        }
+    }
 
     /**
-     * Retrieve pet data from database as a cursor, when loader is created.
+     * Update the views around the pet list once new pets are shown.
+     *
+     * @param nbPets Number of pets shown.
      */
-    @Override
-    public Loader<Cursor> onCreateLoader(int loaderId, Bundle loaderArgs) {
-
-        // Define a projection that specifies the columns from the table we care about
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED
-        };
-
-        // Create loader that will execute the content provider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                PetEntry.CONTENT_URI,           //Provider content URI to query
-                projection,                     // Columns to include in the resulting cursor
-                null,                   // No selection clause
-                null,               // No selection arguments
-                null);                  // Default sort order
+    private void showPets(int nbPets) {
+        // Show the empty view only when the list has 0 pets
+        emptyView.setVisibility(nbPets == 0 ? View.VISIBLE : View.GONE);
+
+        if (!firstListReported) {
+            firstListReported = true;
+            reportFirstListDraw();
+        }
     }
 
     /**
-     * Update UI with freshly retrieved pet data.
+     * Log how long it took to draw the first pet list, once it's about to be drawn, and report the
+     * activity as fully drawn. This covers opening the database, loading the first page and laying
+     * it out.
+     *
+     * The system times the launch up to reportFullyDrawn(), so a cold start can be measured
+     * repeatably, before and after a change, with:
+     * adb shell am force-stop com.example.android.pets
+     * adb shell am start -W -n com.example.android.pets/.CatalogActivity
+     * and the "Fully drawn" line it logs under the ActivityManager tag.
      */
-    @Override
-    public void onLoadFinished(Loader<Cursor> petLoader, Cursor petCursor) {
-        // Update pet cursor with new cursor containing updated pet data
-        petCursorAdapter.swapCursor(petCursor);
+    private void reportFirstListDraw() {
+        petListView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                petListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    reportFullyDrawn();
+                }
+                long nowMs = SystemClock.elapsedRealtime();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    Log.i(LOG_TAG, "First pet list drawn " + (nowMs - createdAtMs) + " ms after activity creation, "
+                            + (nowMs - Process.getStartElapsedRealtime()) + " ms after process start");
+                } else {
+                    Log.i(LOG_TAG, "First pet list drawn " + (nowMs - createdAtMs) + " ms after activity creation");
+                }
+                return true;
+            }
+        });
     }
 
     /**
-     * Delete current pet data.
+     * Callbacks of the pet list loader, which keeps the list up to date by applying the pet
+     * changes to it.
      */
-    @Override
-    public void onLoaderReset(Loader<Cursor> petLoader) {
-        // Detach current pet cursor -- that is, delete the current data
-        petCursorAdapter.swapCursor(null);
+    private final LoaderManager.LoaderCallbacks<List<PetItem>> petListCallbacks =
+            new LoaderManager.LoaderCallbacks<List<PetItem>>() {
+                @Override
+                public Loader<List<PetItem>> onCreateLoader(int loaderId, Bundle loaderArgs) {
+                    return new PetListLoader(CatalogActivity.this, PAGE_SIZE);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<List<PetItem>> petListLoader, List<PetItem> pets) {
+                    // The list is kept up to date while searching, but only shown once the search is over
+                    if (!TextUtils.isEmpty(searchQuery)) {
+                        return;
+                    }
+                    petListAdapter.submitList(pets);
+                    showPets(pets.size());
+                }
+
+                @Override
+                public void onLoaderReset(Loader<List<PetItem>> petListLoader) {
+                    // The adapter has its own copy of the pets
+                }
+            };
+
+    /**
+     * Callbacks of the search loader.
+     */
+    private final LoaderManager.LoaderCallbacks<Cursor> petSearchCallbacks = new LoaderManager.LoaderCallbacks<Cursor>() {
+
+        /**
+         * Retrieve the search results from database as a cursor, when loader is created.
+         */
+        @Override
+        public Loader<Cursor> onCreateLoader(int loaderId, Bundle loaderArgs) {
+
+            // Define a projection that specifies the columns from the table we care about
+            String[] projection = {
+                    PetEntry._ID,
+                    PetEntry.COLUMN_PET_NAME,
+                    PetEntry.COLUMN_PET_BREED
+            };
+
+            Uri searchUri = PetEntry.buildSearchUri(searchQuery).buildUpon()
+                    .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(SEARCH_LIMIT))
+                    .build();
+
+            // Create loader that will execute the content provider's query method on a background thread
+            return new PetSearchLoader(CatalogActivity.this,  // Parent activity context
+                    searchUri,                        // Provider content URI to query
+                    projection);                      // Columns to include in the resulting cursor
+        }
+
+        /**
+         * Update UI with freshly retrieved search results.
+         */
+        @Override
+        public void onLoadFinished(Loader<Cursor> petSearchLoader, Cursor petCursor) {
+            petListAdapter.swapCursor(petCursor);
+            showPets(petCursor.getCount());
+        }
+
+        @Override
+        public void onLoaderReset(Loader<Cursor> petSearchLoader) {
+            // The adapter read the results out of the cursor, and doesn't hold on to it
+        }
+    };
+
+    /**
+     * Show the search results of the current search query, or the pet list when there is none.
+     */
+    private void restartPetLoaders() {
+        LoaderManager loaderManager = getSupportLoaderManager();
+        if (TextUtils.isEmpty(searchQuery)) {
+            // The pet list loader delivers its current list again
+            loaderManager.destroyLoader(PET_SEARCH_LOADER);
+            loaderManager.initLoader(PET_LIST_LOADER, null, petListCallbacks);
+        } else {
+            loaderManager.restartLoader(PET_SEARCH_LOADER, null, petSearchCallbacks);
+        }
     }
 
     /**
@@ -157,6 +332,27 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Reload the pet list with the search results as the user types in the search box
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setQueryHint(getString(R.string.hint_search_pets));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return onQueryTextChange(query);
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                String newSearchQuery = newText.trim();
+                if (!newSearchQuery.equals(searchQuery)) {
+                    searchQuery = newSearchQuery;
+                    restartPetLoaders();
+                }
+                return true;
+            }
+        });
+
         return true; // This adds menu items to the app bar.
     }
 
@@ -188,26 +384,60 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
      */
     private void insertDummyPet() {
 
-        // Create row
-        ContentValues petContentValues = new ContentValues();
-        petContentValues.put(PetEntry.COLUMN_PET_NAME, "Toto");
-        petContentValues.put(PetEntry.COLUMN_PET_BREED, "Terrier");
-        petContentValues.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        petContentValues.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        // Create pet
+        Pet pet = new Pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7);
 
-        // Insert row
-        Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, petContentValues);
+        // Insert pet off the main thread -- the pet list picks it up from its change notification
+        PetWriter.getInstance(this).insert(pet, null);
     }
 
     /**
-     * Helper method to delete all pets in the database.
+     * Helper method to delete all pets in the database, with the option to undo it.
      */
     private  void deleteAllPets() {
 
-        // Delete all pets
-        int nbRowsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+        // Delete all pets off the main thread
+        // Deleted pets are kept until they're purged, so remember which deletion it was to restore them
+        DeleteAllCallback callback = new DeleteAllCallback(this);
+        callback.deletedAtMs = PetWriter.getInstance(this).delete(PetEntry.CONTENT_URI, callback);
+        pendingWrite.start(callback);
+    }
+
+    /**
+     * Offers to undo the delete of all pets, once they're deleted.
+     */
+    private static final class DeleteAllCallback extends ActivityWriteCallback<CatalogActivity> {
+
+        /**
+         * Time of the deletion, set on the main thread before the callback runs
+         */
+        private long deletedAtMs;
+
+        DeleteAllCallback(CatalogActivity activity) {
+            super(activity);
+        }
 
-        // Log deletion confirmation message with number of rows deleted
-        Log.v("CatalogActivity", "Number of rows deleted in database: " + nbRowsDeleted);
+        @Override
+        void onWriteDone(CatalogActivity activity, int nbPetsWritten) {
+            // Log deletion confirmation message with number of rows deleted
+            Log.v("CatalogActivity", "Number of rows deleted in database: " + nbPetsWritten);
+            if (nbPetsWritten == 0) {
+                return;
+            }
+
+            Snackbar.make(activity.petListView, R.string.message_all_pets_deleted, Snackbar.LENGTH_LONG)
+                    .setAction(R.string.action_undo, new View.OnClickListener() {
+                        @Override
+                        public void onClick(View view) {
+                            PetWriter.getInstance(view.getContext()).restoreDeleted(deletedAtMs, null);
+                        }
+                    })
+                    .show();
+        }
+
+        @Override
+        void onWriteFailed(CatalogActivity activity, Exception e) {
+            Toast.makeText(activity.getApplicationContext(), "Error with deleting pets", Toast.LENGTH_SHORT).show();
+        }
     }
 }
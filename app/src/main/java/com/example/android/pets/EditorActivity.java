@@ -15,7 +15,7 @@
  */
 package com.example.android.pets;
 
-import android.content.ContentValues;
+import android.content.ContentUris;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
@@ -38,6 +38,8 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetWriter;
 // Import contract: directly import the inner class PetEntry to avoid typing PetContract.PetEntry each time
 import com.example.android.pets.data.PetContract.PetEntry;
 
@@ -73,6 +75,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** Variable that keeps track of whether the current pet has been edited */
     private boolean petHasChanged = false;
 
+    /** Save or delete of the pet waiting to be written, kept across configuration changes */
+    private PendingWriteModel pendingWrite;
+
     /**
      * OnTouchListener that listens for any user touches on a View, implying that they are modifying
      * the view, and we change the petHasChanged boolean to true.
@@ -135,6 +140,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mWeightEditText.setOnTouchListener(touchListener);
 
         setupSpinner();
+
+        // Close the editor if the pet was saved while the activity was being recreated
+        pendingWrite = PendingWriteModel.of(this);
     }
 
     /**
@@ -204,10 +212,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save pet to the database
-                savePet();
-                // Exit activity and go up one level -- that is, go back to the pet list
-                finish();
+                // Save pet to the database, then exit activity and go up one level -- that is,
+                // go back to the pet list. There is nothing to wait for with no pet to save.
+                if (!savePet()) {
+                    finish();
+                }
                 return true;
 
             // Respond to a click on the "Delete" menu option
@@ -294,24 +303,20 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private void deletePet() {
         // Only perform deletion if this is an existing pet, not a new pet.
-        if (currentPetUri != null) {
-            // Call the content resolver to delete the pet at the given content URI.
-            // Pass in null for the selection and selection args because the current pet URI already
-            // identifies the pet we want.
-            int nbRowsDeleted = getContentResolver().delete(currentPetUri, null, null);
-            
-            // Show toast message depending on whether or not the delete was successful.
-            if (nbRowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                Toast.makeText(this, "Error with deleting pet", Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the delete was successful.
-                Toast.makeText(this, "Pet deleted", Toast.LENGTH_SHORT).show();
-            }
+        if (currentPetUri == null) {
+            finish();
+            return;
         }
 
-        // Close the activity
-        finish();
+        // Ignore the delete while the pet is being written
+        if (pendingWrite.isWritePending()) {
+            return;
+        }
+
+        // Queue the delete of the pet at the given content URI, off the main thread.
+        DeleteCallback deleteCallback = new DeleteCallback(this);
+        pendingWrite.start(deleteCallback);
+        PetWriter.getInstance(this).delete(currentPetUri, deleteCallback);
     }
 
     /**
@@ -342,9 +347,17 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     /**
-     * Save new pet into the database or update an existing one.
+     * Save new pet into the database or update an existing one, off the main thread. The activity
+     * is closed once the pet is saved.
+     *
+     * @return whether a save was queued, false if there was no pet to save.
      */
-    private void savePet() {
+    private boolean savePet() {
+
+        // Ignore repeated clicks while the pet is being saved
+        if (pendingWrite.isWritePending()) {
+            return true;
+        }
 
         // Get values inputted by user
         String nameString = mNameEditText.getText().toString().trim();
@@ -354,13 +367,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         // If all fields are empty, don't save an empty pet -- return early
         if (currentPetUri == null &&
                 TextUtils.isEmpty(nameString) && TextUtils.isEmpty(breedString) &&
-                TextUtils.isEmpty(weightString) && mGender == PetEntry.GENDER_UNKNOWN) { return; }
-
-        // Create row with custom values
-        ContentValues petContentValues = new ContentValues();
-        petContentValues.put(PetEntry.COLUMN_PET_NAME, nameString);
-        petContentValues.put(PetEntry.COLUMN_PET_BREED, breedString);
-        petContentValues.put(PetEntry.COLUMN_PET_GENDER, mGender);
+                TextUtils.isEmpty(weightString) && mGender == PetEntry.GENDER_UNKNOWN) { return false; }
 
         // If weight field is empty, set weight to 0 instead
         int weight = 0;
@@ -369,36 +376,86 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             weight = Integer.parseInt(weightString);
         }
 
-        petContentValues.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        // Create pet with custom values
+        Pet pet = new Pet(nameString, breedString, mGender, weight);
 
         // Determine if this is a new pet we're inserting, or an existing pet we're updating
         // by checking if currentPetUri is null (inserting) or not (updating)
+        PetWriter petWriter = PetWriter.getInstance(this);
         if (currentPetUri == null) {
 
-            // This is a new pet, so insert a new pet into the provider,
-            // returning the content URI for the new pet
-            Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, petContentValues);
+            // This is a new pet, so insert a new pet into the provider
+            SaveCallback saveCallback = new SaveCallback(this, "Pet saved", "Error saving pet");
+            pendingWrite.start(saveCallback);
+            petWriter.insert(pet, saveCallback);
+        } else {
+            // Otherwise, we're updating and EXISTING pet. So update the pet with the _id of currentPetUri
+            pet.setId(ContentUris.parseId(currentPetUri));
+            SaveCallback saveCallback = new SaveCallback(this, "Pet updated", "Error updating pet");
+            pendingWrite.start(saveCallback);
+            petWriter.update(pet, saveCallback);
+        }
+        return true;
+    }
 
-            // Handle insertion error/success
-            if (newUri == null) {
-                Toast.makeText(this, "Error saving pet", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, "Pet saved", Toast.LENGTH_SHORT).show();
+    /**
+     * Shows how saving the pet went, and closes the activity once it's saved. The activity stays
+     * open if the pet couldn't be saved, so that the user doesn't lose the edits.
+     */
+    private static final class SaveCallback extends ActivityWriteCallback<EditorActivity> {
+        private final String doneMessage;
+        private final String errorMessage;
+
+        SaveCallback(EditorActivity activity, String doneMessage, String errorMessage) {
+            super(activity);
+            this.doneMessage = doneMessage;
+            this.errorMessage = errorMessage;
+        }
+
+        @Override
+        void onWriteDone(EditorActivity activity, int nbPetsWritten) {
+            // No pet written means the pet to update doesn't exist any more
+            if (nbPetsWritten == 0) {
+                onWriteFailed(activity, null);
+                return;
             }
-        } else {
-            // Otherwise, we're updating and EXISTING pet. So update the pet with content URI: currentPetUri
-            // and pass in the new content values. Pass in null for the selection and selection args
-            // because currentPetUri will already identify the correct row in the database that we want to modify
-            int rowsAffected = getContentResolver().update(currentPetUri, petContentValues, null, null);
-
-            // Show a toast message depending on whether or not the update was successful
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update
-                Toast.makeText(this, "Error updating pet", Toast.LENGTH_SHORT).show();
+            Toast.makeText(activity.getApplicationContext(), doneMessage, Toast.LENGTH_SHORT).show();
+            activity.finish();
+        }
+
+        @Override
+        void onWriteFailed(EditorActivity activity, Exception e) {
+            Toast.makeText(activity.getApplicationContext(), errorMessage, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Shows how deleting the pet went, and closes the activity once it's deleted.
+     */
+    private static final class DeleteCallback extends ActivityWriteCallback<EditorActivity> {
+
+        DeleteCallback(EditorActivity activity) {
+            super(activity);
+        }
+
+        @Override
+        void onWriteDone(EditorActivity activity, int nbPetsWritten) {
+            // Show toast message depending on whether or not the delete was successful.
+            if (nbPetsWritten == 0) {
+                // If no rows were deleted, then there was an error with the delete.
+                Toast.makeText(activity.getApplicationContext(), "Error with deleting pet", Toast.LENGTH_SHORT).show();
             } else {
-                // Otherwise, the update was successful
-                Toast.makeText(this, "Pet updated", Toast.LENGTH_SHORT).show();
+                // Otherwise, the delete was successful.
+                Toast.makeText(activity.getApplicationContext(), "Pet deleted", Toast.LENGTH_SHORT).show();
             }
+
+            // Close the activity
+            activity.finish();
+        }
+
+        @Override
+        void onWriteFailed(EditorActivity activity, Exception e) {
+            Toast.makeText(activity.getApplicationContext(), "Error with deleting pet", Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -433,6 +490,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             return;
         }
 
+        // The loader only reloads when this pet changed, but don't overwrite what the user is typing
+        if (petHasChanged) {
+            return;
+        }
+
         // Proceed with moving to the first row of the cursor and reading data from it
         // This should be the only row in the cursor
         if (petCursor.moveToFirst()) {
@@ -0,0 +1,44 @@
+package com.example.android.pets;
+
+import android.arch.lifecycle.ViewModel;
+import android.arch.lifecycle.ViewModelProvider;
+import android.support.v7.app.AppCompatActivity;
+
+/**
+ * Keeps the pet write an activity is waiting for across configuration changes, so that the
+ * activity recreated after a rotation still gets its result, and doesn't queue the write again.
+ */
+public class PendingWriteModel extends ViewModel {
+
+    /**
+     * Callback of the last write queued by the activity, null if none was
+     */
+    private ActivityWriteCallback<?> writeCallback;
+
+    /**
+     * Get the model of an activity, and show its pending write, if any, in this instance of it.
+     * Call from onCreate().
+     */
+    static PendingWriteModel of(AppCompatActivity activity) {
+        PendingWriteModel model = new ViewModelProvider(activity, new ViewModelProvider.NewInstanceFactory())
+                .get(PendingWriteModel.class);
+        if (model.writeCallback != null) {
+            model.writeCallback.attach(activity);
+        }
+        return model;
+    }
+
+    /**
+     * Remember the callback of a write the activity just queued.
+     */
+    void start(ActivityWriteCallback<?> writeCallback) {
+        this.writeCallback = writeCallback;
+    }
+
+    /**
+     * @return whether the activity is waiting for the result of a write.
+     */
+    boolean isWritePending() {
+        return writeCallback != null && writeCallback.isPending();
+    }
+}
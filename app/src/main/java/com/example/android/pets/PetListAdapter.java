@@ -0,0 +1,178 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.v7.recyclerview.extensions.ListAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Adapter between the UI pet's recycler view and the underlying database that supplies it.
+ *
+ * Each cursor from the database is read once into a list of pet items. The differences with the
+ * previous list are computed on a background thread, so that only the pets that actually changed
+ * are rebound and animated on screen.
+ */
+public class PetListAdapter extends ListAdapter<PetListAdapter.PetItem, PetListAdapter.PetViewHolder> {
+
+    /**
+     * Listener for clicks on a pet of the list.
+     */
+    public interface OnPetClickListener {
+
+        /**
+         * @param petId _id of the clicked pet.
+         */
+        void onPetClick(long petId);
+    }
+
+    /**
+     * How to tell whether two pet items are the same pet, and whether that pet changed.
+     */
+    private static final DiffUtil.ItemCallback<PetItem> PET_DIFF_CALLBACK = new DiffUtil.ItemCallback<PetItem>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull PetItem oldPet, @NonNull PetItem newPet) {
+            return oldPet.id == newPet.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull PetItem oldPet, @NonNull PetItem newPet) {
+            return TextUtils.equals(oldPet.name, newPet.name) && TextUtils.equals(oldPet.breed, newPet.breed);
+        }
+    };
+
+    /**
+     * Listener notified when a pet is clicked.
+     */
+    private final OnPetClickListener onPetClickListener;
+
+    /**
+     * Constructor
+     * @param onPetClickListener Listener notified when a pet is clicked.
+     */
+    public PetListAdapter(OnPetClickListener onPetClickListener) {
+        super(PET_DIFF_CALLBACK);
+        this.onPetClickListener = onPetClickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replace the pets shown with the pets of the given cursor. The column indices are looked up
+     * once for the whole cursor.
+     *
+     * @param petCursor Pet data retrieved from the database as a cursor, or null for no pets.
+     */
+    public void swapCursor(Cursor petCursor) {
+        if (petCursor == null) {
+            submitList(null);
+            return;
+        }
+
+        // Get indices of columns we're interested in
+        int idColumnIndex = petCursor.getColumnIndex(PetEntry._ID);
+        int nameColumnIndex = petCursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = petCursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+
+        // Read pet data from cursor for every pet
+        ArrayList<PetItem> pets = new ArrayList<>(petCursor.getCount());
+        petCursor.moveToPosition(-1);
+        while (petCursor.moveToNext()) {
+            pets.add(new PetItem(petCursor.getLong(idColumnIndex),
+                    petCursor.getString(nameColumnIndex),
+                    petCursor.getString(breedColumnIndex)));
+        }
+
+        // Differences with the current list are computed in the background
+        submitList(pets);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).id;
+    }
+
+    /**
+     * Inflate a blank new pet item view, and find its views once.
+     *
+     * @param parent Parent to which the new view is attached to.
+     * @param viewType Unused, all pet items look alike.
+     * @return the view holder of the newly created pet item view.
+     */
+    @NonNull
+    @Override
+    public PetViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View petItemView = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(petItemView);
+    }
+
+    /**
+     * This method binds the pet data at the given position to the given list item view holder.
+     * For example, the name for the current pet can be set on the name TextView in the list item
+     * layout.
+     *
+     * @param petViewHolder View holder of the list item to update.
+     * @param position Position of the pet in the list.
+     */
+    @Override
+    public void onBindViewHolder(@NonNull PetViewHolder petViewHolder, int position) {
+        PetItem pet = getItem(position);
+
+        // If the pet breed is an empty string or null, then use some default text that says
+        // 'Unknown breed', so the text view isn't blank.
+        String petBreed = pet.breed;
+        if (TextUtils.isEmpty(petBreed)) {
+            petBreed = "Unknown breed";
+        }
+
+        // Update the text views with the pet data
+        petViewHolder.petNameTextView.setText(pet.name);
+        petViewHolder.petBreedTextView.setText(petBreed);
+    }
+
+    /**
+     * Pet data shown by one list item.
+     */
+    static final class PetItem {
+        final long id;
+        final String name;
+        final String breed;
+
+        PetItem(long id, String name, String breed) {
+            this.id = id;
+            this.name = name;
+            this.breed = breed;
+        }
+    }
+
+    /**
+     * Views of one pet list item, looked up once when the item view is created.
+     */
+    final class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView petNameTextView;
+        final TextView petBreedTextView;
+
+        PetViewHolder(View petItemView) {
+            super(petItemView);
+            petNameTextView = petItemView.findViewById(R.id.pet_name_text_view);
+            petBreedTextView = petItemView.findViewById(R.id.pet_breed_text_view);
+            petItemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View clickedItem) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                onPetClickListener.onPetClick(getItemId());
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.Log;
+
+import com.example.android.pets.PetListAdapter.PetItem;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the pet list page by page, and keeps it up to date from the pet change log.
+ *
+ * The loader holds the loaded pets in memory, sorted by _id. When the pets change, it only reads
+ * the changes since the last one it applied, and applies them to the pets in memory, rather than
+ * querying all the loaded pages again. It only reads the pets again when it fell too far behind,
+ * or when the changes it needs were compacted away by the provider.
+ *
+ * The pets in memory are only touched by loadInBackground, and loads never overlap.
+ */
+public class PetListLoader extends AsyncTaskLoader<List<PetItem>> {
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = PetListLoader.class.getSimpleName();
+
+    /**
+     * Minimum time between two loads, so a burst of pet changes is applied at once.
+     */
+    private static final long UPDATE_THROTTLE_MS = 250;
+
+    /**
+     * Most changes applied at once -- beyond that, reading the pets again is cheaper.
+     */
+    private static final int MAX_CHANGES = 500;
+
+    /**
+     * Columns of the pets in memory, and of the changes applied to them
+     */
+    private static final String[] PET_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+    private static final String[] CHANGE_PROJECTION = {
+            PetChangeEntry.COLUMN_CHANGE_SEQ,
+            PetChangeEntry.COLUMN_CHANGE_TYPE,
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    /**
+     * Number of pets loaded per page.
+     */
+    private final int pageSize;
+
+    /**
+     * Loaded pets, sorted by _id
+     */
+    private final ArrayList<PetItem> pets = new ArrayList<>();
+
+    /**
+     * _id of the last pet of the last loaded page. Pets after it are left for the next page, even
+     * once the pets up to it are deleted.
+     */
+    private long loadedUpToId;
+
+    /**
+     * Sequence number of the last change applied to the pets, -1 before the first load
+     */
+    private long lastSeq = -1;
+
+    /**
+     * Whether there are pets after the last loaded page, and whether the next page was requested.
+     */
+    private volatile boolean hasMorePets;
+    private volatile boolean nextPageRequested;
+
+    /**
+     * Observer of changes to the pet list.
+     */
+    private final ContentObserver petObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onContentChanged();
+        }
+    };
+
+    /**
+     * Whether petObserver is registered with the content resolver.
+     */
+    private boolean observing;
+
+    /**
+     * Last delivered pet list.
+     */
+    private List<PetItem> petList;
+
+    /**
+     * Constructor
+     * @param context Environment data.
+     * @param pageSize Number of pets loaded per page.
+     */
+    public PetListLoader(Context context, int pageSize) {
+        super(context);
+        this.pageSize = pageSize;
+        setUpdateThrottle(UPDATE_THROTTLE_MS);
+    }
+
+    /**
+     * Load the page after the loaded pets, if there are more pets.
+     */
+    public void loadNextPage() {
+        if (!hasMorePets || nextPageRequested) {
+            return;
+        }
+        nextPageRequested = true;
+        forceLoad();
+    }
+
+    /**
+     * Bring the pets up to date on a background thread, and return a copy of them.
+     */
+    @Override
+    public List<PetItem> loadInBackground() {
+        ContentResolver contentResolver = getContext().getContentResolver();
+
+        if (lastSeq < 0) {
+            // First load
+            reloadPets(contentResolver, pageSize);
+        } else if (!applyChanges(contentResolver)) {
+            // Too many changes, or the changes are lost: read the loaded pets again
+            reloadPets(contentResolver, Math.max(pets.size(), pageSize));
+        }
+
+        if (nextPageRequested) {
+            nextPageRequested = false;
+            if (hasMorePets) {
+                loadPage(contentResolver, pageSize);
+            }
+        }
+
+        return new ArrayList<>(pets);
+    }
+
+    /**
+     * Drop the pets in memory, and read the first pets again.
+     *
+     * @param nbPets Number of pets to read.
+     */
+    private void reloadPets(ContentResolver contentResolver, int nbPets) {
+        // Read the sequence number first, so that changes made while reading are applied again
+        // rather than missed
+        Bundle lastChange = contentResolver.call(PetContract.BASE_CONTENT_URI,
+                PetContract.METHOD_GET_LAST_CHANGE_SEQ, null, null);
+        lastSeq = lastChange.getLong(PetContract.KEY_CHANGE_SEQ);
+
+        pets.clear();
+        loadedUpToId = 0;
+        loadPage(contentResolver, nbPets);
+    }
+
+    /**
+     * Read the page of pets after the loaded ones, and append it to the pets in memory.
+     *
+     * @param nbPets Maximum number of pets in the page.
+     */
+    private void loadPage(ContentResolver contentResolver, int nbPets) {
+        Uri pageUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID, String.valueOf(loadedUpToId))
+                .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(nbPets))
+                .build();
+        Cursor cursor = contentResolver.query(pageUri, PET_PROJECTION, null, null, null);
+        if (cursor == null) {
+            hasMorePets = false;
+            return;
+        }
+        try {
+            pets.ensureCapacity(pets.size() + cursor.getCount());
+            while (cursor.moveToNext()) {
+                pets.add(new PetItem(cursor.getLong(0), cursor.getString(1), cursor.getString(2)));
+                loadedUpToId = cursor.getLong(0);
+            }
+            hasMorePets = cursor.getCount() == nbPets;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Apply the changes since the last applied one to the pets in memory.
+     *
+     * @return false if the pets have to be read again instead.
+     */
+    private boolean applyChanges(ContentResolver contentResolver) {
+        Uri changesUri = PetChangeEntry.buildChangesUri(lastSeq).buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(MAX_CHANGES + 1))
+                .build();
+        Cursor cursor = contentResolver.query(changesUri, CHANGE_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            if (cursor.getCount() > MAX_CHANGES) {
+                Log.i(LOG_TAG, "More than " + MAX_CHANGES + " pet changes, reading the pets again");
+                return false;
+            }
+
+            // Pets after the last loaded page are left for the next page to read
+            long insertUpToId = hasMorePets ? loadedUpToId : Long.MAX_VALUE;
+            long newLastSeq = lastSeq;
+            while (cursor.moveToNext()) {
+                int changeType = cursor.getInt(1);
+                if (changeType == PetChangeEntry.CHANGE_RESET) {
+                    Log.i(LOG_TAG, "Pet changes since " + lastSeq + " were compacted, reading the pets again");
+                    return false;
+                }
+                newLastSeq = Math.max(newLastSeq, cursor.getLong(0));
+
+                long petId = cursor.getLong(2);
+                int position = findPet(petId);
+                if (changeType == PetChangeEntry.CHANGE_DELETE || cursor.isNull(3)) {
+                    if (position >= 0) {
+                        pets.remove(position);
+                    }
+                } else if (petId <= insertUpToId) {
+                    PetItem pet = new PetItem(petId, cursor.getString(3), cursor.getString(4));
+                    if (position >= 0) {
+                        pets.set(position, pet);
+                    } else {
+                        pets.add(-position - 1, pet);
+                    }
+                    loadedUpToId = Math.max(loadedUpToId, petId);
+                }
+            }
+            lastSeq = newLastSeq;
+        } finally {
+            cursor.close();
+        }
+
+        // Deleted pets leave less than a page loaded: fill it from the pets after the loaded ones,
+        // which also tells whether there are still more
+        if (hasMorePets && pets.size() < pageSize) {
+            loadPage(contentResolver, pageSize - pets.size());
+        }
+        return true;
+    }
+
+    /**
+     * Binary search of a pet in memory by _id.
+     *
+     * @return the position of the pet, or (-(insertion position) - 1) if it isn't there.
+     */
+    private int findPet(long petId) {
+        int low = 0;
+        int high = pets.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = pets.get(middle).id;
+            if (middleId < petId) {
+                low = middle + 1;
+            } else if (middleId > petId) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public void deliverResult(List<PetItem> pets) {
+        if (isReset()) {
+            return;
+        }
+        petList = pets;
+        if (isStarted()) {
+            super.deliverResult(pets);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!observing) {
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, petObserver);
+            observing = true;
+        }
+        if (petList != null) {
+            deliverResult(petList);
+        }
+        if (takeContentChanged() || petList == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(List<PetItem> pets) {
+        // The canceled load still applied its changes, but its list was never shown
+        if (!isStarted()) {
+            onContentChanged();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (observing) {
+            getContext().getContentResolver().unregisterContentObserver(petObserver);
+            observing = false;
+        }
+        petList = null;
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.content.ContentResolverCompat;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Loads the results of a pet search, like a CursorLoader, but cancels the search in SQLite when
+ * it's no longer needed, and reloads at most once per burst of pet changes.
+ *
+ * Any pet may match the search, so any change to the pets reloads the results.
+ */
+public class PetSearchLoader extends AsyncTaskLoader<Cursor> {
+
+    /**
+     * Minimum time between two reloads, so a burst of pet changes only reloads the results once.
+     */
+    private static final long UPDATE_THROTTLE_MS = 250;
+
+    /**
+     * Query of the search
+     */
+    private final Uri searchUri;
+    private final String[] projection;
+
+    /**
+     * Observer of changes to the pets.
+     */
+    private final ContentObserver petObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onContentChanged();
+        }
+    };
+
+    /**
+     * Whether petObserver is registered with the content resolver.
+     */
+    private boolean observing;
+
+    /**
+     * Last loaded cursor.
+     */
+    private Cursor petCursor;
+
+    /**
+     * Signal canceling the running query, null when no query is running. Guarded by the loader.
+     */
+    private CancellationSignal cancellationSignal;
+
+    /**
+     * Constructor
+     * @param context Environment data.
+     * @param searchUri Search content URI to query.
+     * @param projection Columns to include in the resulting cursor.
+     */
+    public PetSearchLoader(Context context, Uri searchUri, String[] projection) {
+        super(context);
+        this.searchUri = searchUri;
+        this.projection = projection;
+        setUpdateThrottle(UPDATE_THROTTLE_MS);
+    }
+
+    /**
+     * Query the search results on a background thread. The query is canceled in SQLite if the
+     * load is canceled, for example when the loader is restarted for a new search.
+     */
+    @Override
+    public Cursor loadInBackground() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = new CancellationSignal();
+        }
+        try {
+            Cursor cursor = ContentResolverCompat.query(getContext().getContentResolver(),
+                    searchUri, projection, null, null, null, cancellationSignal);
+            if (cursor != null) {
+                try {
+                    // Fill the cursor window here, rather than on the main thread
+                    cursor.getCount();
+                } catch (RuntimeException e) {
+                    cursor.close();
+                    throw e;
+                }
+            }
+            return cursor;
+        } finally {
+            synchronized (this) {
+                cancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized (this) {
+            if (cancellationSignal != null) {
+                cancellationSignal.cancel();
+            }
+        }
+    }
+
+    /**
+     * Deliver the loaded results, closing the results they replace.
+     */
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            // A load came back after the loader was reset
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+
+        Cursor oldCursor = petCursor;
+        petCursor = cursor;
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()) {
+            oldCursor.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!observing) {
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, petObserver);
+            observing = true;
+        }
+        if (petCursor != null) {
+            deliverResult(petCursor);
+        }
+        if (takeContentChanged() || petCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (observing) {
+            getContext().getContentResolver().unregisterContentObserver(petObserver);
+            observing = false;
+        }
+        if (petCursor != null && !petCursor.isClosed()) {
+            petCursor.close();
+        }
+        petCursor = null;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.pets.data;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * A pet of the shelter, with its attributes as plain fields.
+ *
+ * Pets are mutable, so that the same object can be filled again row after row instead of
+ * allocating a new one for each pet read.
+ */
+public final class Pet {
+
+    /**
+     * _id of a pet that isn't in the database yet
+     */
+    public static final long NO_ID = -1;
+
+    private long id = NO_ID;
+    private String name;
+    private String breed;
+    private int gender = PetEntry.GENDER_UNKNOWN;
+    private int weight;
+
+    /**
+     * Create a blank pet, to be filled.
+     */
+    public Pet() {
+    }
+
+    /**
+     * Create a new pet, not in the database yet.
+     *
+     * @param name   Name of the pet.
+     * @param breed  Breed of the pet, may be null or empty if unknown.
+     * @param gender One of the PetEntry.GENDER_* constants.
+     * @param weight Weight of the pet in kg.
+     */
+    public Pet(String name, String breed, int gender, int weight) {
+        set(NO_ID, name, breed, gender, weight);
+    }
+
+    /**
+     * Replace all the attributes of the pet.
+     */
+    public void set(long id, String name, String breed, int gender, int weight) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getBreed() {
+        return breed;
+    }
+
+    public void setBreed(String breed) {
+        this.breed = breed;
+    }
+
+    public int getGender() {
+        return gender;
+    }
+
+    public void setGender(int gender) {
+        this.gender = gender;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Log of the changes to the pets table, written by triggers on every insert, update and delete.
+ *
+ * Each change gets a sequence number, from AUTOINCREMENT so that it only ever grows, even after
+ * the log is compacted. Readers remember the last sequence number they applied, and ask only for
+ * the changes after it. Compaction drops the changes up to a sequence number, which becomes the
+ * horizon of the log: readers behind the horizon have missed changes, and must read everything
+ * again. The log is shared by every reader, so it's only compacted by the database maintenance,
+ * down to the latest MAX_KEPT_CHANGES, and never up to where a single reader got.
+ *
+ * Since version 7, tombstoning a pet is logged as its delete and restoring it as its insert,
+ * while purging a tombstone isn't logged at all.
+ */
+final class PetChangeLog {
+
+    /**
+     * Change log table and its columns
+     */
+    static final String TABLE_CHANGES = "pet_changes";
+    static final String COLUMN_PET_ID = "pet_id";
+
+    /**
+     * Single row table holding the horizon of the log
+     */
+    private static final String TABLE_HORIZON = "pet_changes_horizon";
+
+    /**
+     * Number of latest changes kept by compaction
+     */
+    static final int MAX_KEPT_CHANGES = 10000;
+
+    /**
+     * Latest change of each pet changed after a sequence number, with the pet's current
+     * attributes, null for deleted pets and tombstones. Used as a FROM clause, whose parameter is
+     * the sequence number.
+     */
+    static final String SQL_CHANGES_SINCE = "(SELECT " +
+            "c." + PetChangeEntry.COLUMN_CHANGE_SEQ + " AS " + PetChangeEntry.COLUMN_CHANGE_SEQ + ", " +
+            "c." + COLUMN_PET_ID + " AS " + PetEntry._ID + ", " +
+            "c." + PetChangeEntry.COLUMN_CHANGE_TYPE + " AS " + PetChangeEntry.COLUMN_CHANGE_TYPE + ", " +
+            "p." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", " +
+            "p." + PetEntry.COLUMN_PET_BREED + " AS " + PetEntry.COLUMN_PET_BREED + ", " +
+            "p." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ", " +
+            "p." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT +
+            " FROM (SELECT MAX(" + PetChangeEntry.COLUMN_CHANGE_SEQ + ") AS latest_seq FROM " + TABLE_CHANGES +
+            " WHERE " + PetChangeEntry.COLUMN_CHANGE_SEQ + " > ? GROUP BY " + COLUMN_PET_ID + ")" +
+            " JOIN " + TABLE_CHANGES + " c ON c." + PetChangeEntry.COLUMN_CHANGE_SEQ + " = latest_seq" +
+            " LEFT JOIN " + PetEntry.TABLE_NAME + " p ON p." + PetEntry._ID + " = c." + COLUMN_PET_ID +
+            " AND p." + PetTombstones.SQL_LIVE + ")";
+
+    /**
+     * Empty constructor -- this class only holds static helpers.
+     */
+    private PetChangeLog() {}
+
+    /**
+     * Create the change log, its horizon and the triggers writing to it.
+     */
+    static void createSchema(SQLiteDatabase database) {
+        database.execSQL("CREATE TABLE " + TABLE_CHANGES + " (" +
+                PetChangeEntry.COLUMN_CHANGE_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_PET_ID + " INTEGER NOT NULL, " +
+                PetChangeEntry.COLUMN_CHANGE_TYPE + " INTEGER NOT NULL);");
+        database.execSQL("CREATE TABLE " + TABLE_HORIZON + " (" +
+                PetChangeEntry.COLUMN_CHANGE_SEQ + " INTEGER NOT NULL);");
+        database.execSQL("INSERT INTO " + TABLE_HORIZON + " VALUES (0);");
+
+        database.execSQL("CREATE TRIGGER pets_changes_after_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + sqlLogChange("new", PetChangeEntry.CHANGE_INSERT) + " END;");
+        database.execSQL("CREATE TRIGGER pets_changes_after_update AFTER UPDATE ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + sqlLogChange("new", PetChangeEntry.CHANGE_UPDATE) + " END;");
+        database.execSQL("CREATE TRIGGER pets_changes_after_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + sqlLogChange("old", PetChangeEntry.CHANGE_DELETE) + " END;");
+    }
+
+    /**
+     * Log the updates of live pets only, tombstoning and restoring pets as their delete and
+     * insert, and leave purged tombstones out.
+     */
+    static void createTombstoneTriggers(SQLiteDatabase database) {
+        database.execSQL("DROP TRIGGER pets_changes_after_update;");
+        database.execSQL("DROP TRIGGER pets_changes_after_delete;");
+
+        database.execSQL("CREATE TRIGGER pets_changes_after_update AFTER UPDATE ON " + PetEntry.TABLE_NAME +
+                " WHEN old." + PetTombstones.SQL_LIVE + " AND new." + PetTombstones.SQL_LIVE +
+                " BEGIN " + sqlLogChange("new", PetChangeEntry.CHANGE_UPDATE) + " END;");
+        database.execSQL("CREATE TRIGGER pets_changes_after_tombstone AFTER UPDATE OF " + PetEntry.COLUMN_PET_DELETED_AT +
+                " ON " + PetEntry.TABLE_NAME + " WHEN " + PetTombstones.sqlTombstoning() +
+                " BEGIN " + sqlLogChange("old", PetChangeEntry.CHANGE_DELETE) + " END;");
+        database.execSQL("CREATE TRIGGER pets_changes_after_restore AFTER UPDATE OF " + PetEntry.COLUMN_PET_DELETED_AT +
+                " ON " + PetEntry.TABLE_NAME + " WHEN " + PetTombstones.sqlRestoring() +
+                " BEGIN " + sqlLogChange("new", PetChangeEntry.CHANGE_INSERT) + " END;");
+        database.execSQL("CREATE TRIGGER pets_changes_after_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                " WHEN old." + PetTombstones.SQL_LIVE +
+                " BEGIN " + sqlLogChange("old", PetChangeEntry.CHANGE_DELETE) + " END;");
+    }
+
+    /**
+     * @return the trigger statement logging a change of the given type to the new or old row.
+     */
+    private static String sqlLogChange(String row, int changeType) {
+        return "INSERT INTO " + TABLE_CHANGES + " (" + COLUMN_PET_ID + ", " + PetChangeEntry.COLUMN_CHANGE_TYPE +
+                ") VALUES (" + row + "." + PetEntry._ID + ", " + changeType + ");";
+    }
+
+    /**
+     * @return the sequence number of the last change, or 0 if there was none.
+     */
+    static long getLastSeq(SQLiteDatabase database) {
+        // AUTOINCREMENT keeps the last sequence number given, even once its change is compacted
+        return DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?",
+                new String[] { TABLE_CHANGES });
+    }
+
+    /**
+     * @return the sequence number up to which the log was compacted.
+     */
+    static long getHorizon(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "SELECT " + PetChangeEntry.COLUMN_CHANGE_SEQ +
+                " FROM " + TABLE_HORIZON, null);
+    }
+
+    /**
+     * Drop all but the latest MAX_KEPT_CHANGES changes.
+     *
+     * @return the number of changes dropped.
+     */
+    static int trim(SQLiteDatabase database) {
+        long upToSeq = getLastSeq(database) - MAX_KEPT_CHANGES;
+        if (upToSeq <= getHorizon(database)) {
+            return 0;
+        }
+        return compact(database, upToSeq);
+    }
+
+    /**
+     * Drop the changes up to the given sequence number, and move the horizon there.
+     *
+     * @return the number of changes dropped.
+     */
+    static int compact(SQLiteDatabase database, long upToSeq) {
+        int nbChangesDropped;
+        database.beginTransaction();
+        try {
+            nbChangesDropped = database.delete(TABLE_CHANGES, PetChangeEntry.COLUMN_CHANGE_SEQ + " <= ?",
+                    new String[] { String.valueOf(upToSeq) });
+            database.execSQL("UPDATE " + TABLE_HORIZON + " SET " + PetChangeEntry.COLUMN_CHANGE_SEQ +
+                    " = MAX(" + PetChangeEntry.COLUMN_CHANGE_SEQ + ", ?)", new Object[] { upToSeq });
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return nbChangesDropped;
+    }
+}
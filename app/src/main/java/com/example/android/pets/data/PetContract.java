@@ -39,6 +39,138 @@ public final class PetContract {
      */
     public static final String PATH_PETS = "pets";
 
+    /**
+     * Path (appended to the pets content URI) for full-text search over pet names and breeds.
+     * For instance, content://com.example.android.pets/pets/search/ter finds "Terrier" pets.
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Paths (appended to the pets content URI) for shelter statistics.
+     * For instance, content://com.example.android.pets/pets/stats/breeds lists the top breeds.
+     */
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_BREEDS = "breeds";
+
+    /**
+     * Path (appended to the pets content URI) for exporting pets as a stream.
+     * For instance, content://com.example.android.pets/pets/export?format=json
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Path (appended to the pets content URI) for reading the pet changes after a point.
+     * For instance, content://com.example.android.pets/pets/changes?since=42
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /**
+     * Path (appended to the pets content URI) for the deleted pets, kept until they're purged.
+     * For instance, content://com.example.android.pets/pets/deleted
+     */
+    public static final String PATH_DELETED = "deleted";
+
+    /**
+     * Provider methods, called with ContentResolver.call() on BASE_CONTENT_URI.
+     *
+     * METHOD_GET_ROW_CACHE_STATS returns the hit and miss counts of the single pet row cache, and
+     * how many rows it holds out of its maximum, under the KEY_ROW_CACHE_* keys.
+     */
+    public static final String METHOD_GET_ROW_CACHE_STATS = "get_row_cache_stats";
+    public static final String KEY_ROW_CACHE_HITS = "row_cache_hits";
+    public static final String KEY_ROW_CACHE_MISSES = "row_cache_misses";
+    public static final String KEY_ROW_CACHE_SIZE = "row_cache_size";
+    public static final String KEY_ROW_CACHE_MAX_SIZE = "row_cache_max_size";
+
+    /**
+     * METHOD_REBUILD_STATS checks the shelter statistics against the pets table and rebuilds them
+     * from it. KEY_STATS_WERE_CONSISTENT tells whether they matched before the rebuild.
+     */
+    public static final String METHOD_REBUILD_STATS = "rebuild_stats";
+    public static final String KEY_STATS_WERE_CONSISTENT = "stats_were_consistent";
+
+    /**
+     * Bulk operations, each run as one SQL statement in one transaction, with one notification of
+     * the pet list. They return the number of pets written under KEY_AFFECTED_ROWS.
+     *
+     * METHOD_RENAME_BREED gives the pets of the breed passed as argument the breed under
+     * KEY_NEW_BREED. METHOD_ADJUST_WEIGHTS adds the int under KEY_WEIGHT_DELTA to the weight of
+     * the pets, down to 0 at least. METHOD_PURGE_PETS deletes pets, like delete(), so they can be
+     * restored until the background purge. The pets adjusted or purged are selected by the
+     * argument: a PetEntry.CONTENT_URI with filter query parameters, such as pets?maxWeight=2.
+     * Purging requires at least one filter.
+     */
+    public static final String METHOD_RENAME_BREED = "rename_breed";
+    public static final String METHOD_ADJUST_WEIGHTS = "adjust_weights";
+    public static final String METHOD_PURGE_PETS = "purge_pets";
+    public static final String KEY_NEW_BREED = "new_breed";
+    public static final String KEY_WEIGHT_DELTA = "weight_delta";
+    public static final String KEY_AFFECTED_ROWS = "affected_rows";
+
+    /**
+     * METHOD_GET_LAST_CHANGE_SEQ returns the sequence number of the last pet change under
+     * KEY_CHANGE_SEQ. The provider compacts the change log itself, keeping the latest changes.
+     */
+    public static final String METHOD_GET_LAST_CHANGE_SEQ = "get_last_change_seq";
+    public static final String KEY_CHANGE_SEQ = "change_seq";
+
+    /**
+     * METHOD_GET_METRICS returns the provider's operation metrics since KEY_METRICS_SINCE, a time
+     * in milliseconds. Each operation and URI code that ran, such as "query.pets" or
+     * "update.pet", maps to a bundle of the other KEY_METRICS_* values. The histogram is an array
+     * of counts, whose element i counts durations from 2^(i-1) up to 2^i microseconds.
+     * METHOD_RESET_METRICS sets them all back to zero.
+     */
+    public static final String METHOD_GET_METRICS = "get_metrics";
+    public static final String METHOD_RESET_METRICS = "reset_metrics";
+    public static final String KEY_METRICS_SINCE = "since";
+    public static final String KEY_METRICS_COUNT = "count";
+    public static final String KEY_METRICS_ERRORS = "errors";
+    public static final String KEY_METRICS_ROWS = "rows";
+    public static final String KEY_METRICS_NOTIFICATIONS = "notifications";
+    public static final String KEY_METRICS_TOTAL_US = "total_us";
+    public static final String KEY_METRICS_MAX_US = "max_us";
+    public static final String KEY_METRICS_P50_US = "p50_us";
+    public static final String KEY_METRICS_P99_US = "p99_us";
+    public static final String KEY_METRICS_HISTOGRAM = "histogram_us";
+
+    /**
+     * METHOD_GET_SLOW_QUERIES returns the queries that took longer than KEY_SLOW_QUERY_THRESHOLD_MS,
+     * oldest first, as a list of bundles under KEY_SLOW_QUERIES. Each one holds the other
+     * KEY_SLOW_QUERY_* values: its SQL, the shape of its arguments but not their values, its row
+     * count, how long it took and its EXPLAIN QUERY PLAN steps, one per line. The plan is worked
+     * out in the background, so it's missing from queries that were only just logged.
+     * METHOD_CLEAR_SLOW_QUERIES forgets them, and METHOD_SET_SLOW_QUERY_THRESHOLD sets the
+     * threshold to its argument, in milliseconds.
+     */
+    public static final String METHOD_GET_SLOW_QUERIES = "get_slow_queries";
+    public static final String METHOD_CLEAR_SLOW_QUERIES = "clear_slow_queries";
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+    public static final String KEY_SLOW_QUERIES = "slow_queries";
+    public static final String KEY_SLOW_QUERY_THRESHOLD_MS = "threshold_ms";
+    public static final String KEY_SLOW_QUERY_TIME = "time";
+    public static final String KEY_SLOW_QUERY_SQL = "sql";
+    public static final String KEY_SLOW_QUERY_ARG_SHAPES = "arg_shapes";
+    public static final String KEY_SLOW_QUERY_ROWS = "rows";
+    public static final String KEY_SLOW_QUERY_ELAPSED_MS = "elapsed_ms";
+    public static final String KEY_SLOW_QUERY_PLAN = "plan";
+
+    /**
+     * METHOD_RUN_MAINTENANCE runs the database maintenance now, rather than when the database is
+     * idle, and returns how it went: how long it took, the size on disk of the database and its
+     * write-ahead log before and after, in bytes, the free pages before and after, and whether it
+     * had to switch the database to incremental auto_vacuum with a full vacuum, and how many old
+     * pet changes were compacted away.
+     */
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+    public static final String KEY_MAINTENANCE_DURATION_MS = "duration_ms";
+    public static final String KEY_MAINTENANCE_SIZE_BEFORE = "size_before";
+    public static final String KEY_MAINTENANCE_SIZE_AFTER = "size_after";
+    public static final String KEY_MAINTENANCE_FREE_PAGES_BEFORE = "free_pages_before";
+    public static final String KEY_MAINTENANCE_FREE_PAGES_AFTER = "free_pages_after";
+    public static final String KEY_MAINTENANCE_FULL_VACUUM = "full_vacuum";
+    public static final String KEY_MAINTENANCE_CHANGES_DROPPED = "changes_dropped";
+
     /**
      * Inner-class representing the pets table in our app's pets database.
      *
@@ -51,6 +183,40 @@ public final class PetContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to search pets by name and breed -- append the search query to it
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * The content URI to export pets, opened with ContentResolver.openTypedAssetFileDescriptor()
+         * for one of the EXPORT_TYPE_* types, or with ContentResolver.openInputStream() and the
+         * format query parameter. The filter query parameters of CONTENT_URI apply.
+         */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * The content URI of the deleted pets. Deleting pets only marks them as deleted, with
+         * COLUMN_PET_DELETED_AT, and hides them from every other URI. Until they're purged in the
+         * background, they can be listed here, and restored by updating COLUMN_PET_DELETED_AT to
+         * null. Deleting them here purges them right away.
+         */
+        public static final Uri CONTENT_DELETED_URI = Uri.withAppendedPath(CONTENT_URI, PATH_DELETED);
+
+        /**
+         * MIME types of a pet export
+         */
+        public static final String EXPORT_TYPE_CSV = "text/csv";
+        public static final String EXPORT_TYPE_JSON = "application/json";
+
+        /**
+         * Query parameter choosing the format of a pet export opened as a plain file, with the
+         * FORMAT_* values. CSV by default.
+         */
+        public static final String QUERY_PARAM_FORMAT = "format";
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_JSON = "json";
+
         /**
          * MIME type for a list of pets
          */
@@ -74,6 +240,47 @@ public final class PetContract {
         public final static String COLUMN_PET_BREED = "breed";
         public final static String COLUMN_PET_GENDER = "gender";
         public final static String COLUMN_PET_WEIGHT = "weight";
+        public final static String COLUMN_PET_DELETED_AT = "deleted_at";  // Milliseconds since epoch, null unless deleted
+
+        /**
+         * Full-text index over pet names and breeds, kept in sync with the table by triggers
+         */
+        public final static String FTS_TABLE_NAME = "pets_fts";
+
+        /**
+         * Index names
+         */
+        public final static String INDEX_NAME = "idx_pets_name";
+        public final static String INDEX_BREED = "idx_pets_breed";
+        public final static String INDEX_GENDER_WEIGHT = "idx_pets_gender_weight";
+        public final static String INDEX_WEIGHT = "idx_pets_weight";
+        public final static String INDEX_DELETED_AT = "idx_pets_deleted_at";
+
+        /**
+         * Query parameters for filtering and sorting CONTENT_URI, each served by an index.
+         * For instance: content://com.example.android.pets/pets?gender=1&minWeight=5&sort=name
+         */
+        public static final String QUERY_PARAM_NAME = "name";             // Exact name, ignoring case
+        public static final String QUERY_PARAM_BREED = "breed";           // Exact breed
+        public static final String QUERY_PARAM_GENDER = "gender";         // One of the GENDER_* constants
+        public static final String QUERY_PARAM_MIN_WEIGHT = "minWeight";  // Inclusive lower bound
+        public static final String QUERY_PARAM_MAX_WEIGHT = "maxWeight";  // Inclusive upper bound
+        public static final String QUERY_PARAM_SORT = "sort";             // One of the SORT_* constants
+
+        /**
+         * Query parameters for keyset pagination of CONTENT_URI, in _id order.
+         * For instance: content://com.example.android.pets/pets?afterId=120&limit=50
+         */
+        public static final String QUERY_PARAM_AFTER_ID = "afterId";      // Exclusive lower _id bound
+        public static final String QUERY_PARAM_UP_TO_ID = "upToId";       // Inclusive upper _id bound
+        public static final String QUERY_PARAM_LIMIT = "limit";           // Maximum number of pets
+
+        /**
+         * Values accepted by the sort query parameter
+         */
+        public static final String SORT_NAME = "name";
+        public static final String SORT_BREED = "breed";
+        public static final String SORT_WEIGHT = "weight";
 
         /**
          * Helper constants for this table
@@ -82,6 +289,14 @@ public final class PetContract {
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
 
+        /**
+         * Helper method for building the URI searching pets for the given query. Every word of the
+         * query matches as a prefix of a word in the pet name or breed.
+         */
+        public static Uri buildSearchUri(String query) {
+            return Uri.withAppendedPath(CONTENT_SEARCH_URI, query);
+        }
+
         /**
          * Helper method for gender validation
          */
@@ -92,4 +307,99 @@ public final class PetContract {
             return false;
         }
     }
+
+    /**
+     * Inner-class representing the shelter statistics, read-only and kept up to date with the pets
+     * table.
+     */
+    public final static class PetStatsEntry {
+
+        /**
+         * The content URI to access the statistics per gender: one row per gender with pets, with
+         * the COLUMN_PET_GENDER, COLUMN_PET_COUNT, COLUMN_AVERAGE_WEIGHT and COLUMN_MAX_WEIGHT columns.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * The content URI to access the top breeds: one row per breed with the COLUMN_PET_BREED and
+         * COLUMN_PET_COUNT columns, most common breed first. The limit query parameter of the pets
+         * table sets how many breeds are returned, TOP_BREEDS_LIMIT by default.
+         */
+        public static final Uri BREEDS_CONTENT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_BREEDS);
+
+        /**
+         * MIME types for the statistics per gender and per breed
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+        public static final String BREEDS_CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BREEDS;
+
+        /**
+         * Column names
+         */
+        public final static String COLUMN_PET_GENDER = PetEntry.COLUMN_PET_GENDER;
+        public final static String COLUMN_PET_BREED = PetEntry.COLUMN_PET_BREED;
+        public final static String COLUMN_PET_COUNT = "pet_count";
+        public final static String COLUMN_AVERAGE_WEIGHT = "average_weight";
+        public final static String COLUMN_MAX_WEIGHT = "max_weight";
+
+        /**
+         * Default number of top breeds
+         */
+        public static final int TOP_BREEDS_LIMIT = 10;
+    }
+
+    /**
+     * Inner class that defines the pet change feed.
+     *
+     * Every insert, update and delete of a pet is logged with an increasing sequence number. A
+     * reader remembers the sequence number of the last change it applied, and asks for the changes
+     * after it, instead of reading all pets again.
+     */
+    public final static class PetChangeEntry {
+
+        /**
+         * The content URI to access the changes after the sequence number given by the
+         * QUERY_PARAM_SINCE query parameter: one row per changed pet, for its latest change, in
+         * sequence order. Rows have the COLUMN_CHANGE_SEQ and COLUMN_CHANGE_TYPE columns, along
+         * with the pet's _id and current attributes, null once deleted. The limit query parameter
+         * of the pets table applies.
+         *
+         * If the log was compacted past the given sequence number, the only row is a
+         * CHANGE_RESET: the changes since then are lost, and all pets have to be read again.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * MIME type of the change feed
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+
+        /**
+         * Query parameter: sequence number of the last change already applied, 0 for all changes
+         */
+        public static final String QUERY_PARAM_SINCE = "since";
+
+        /**
+         * Column names
+         */
+        public final static String COLUMN_CHANGE_SEQ = "seq";
+        public final static String COLUMN_CHANGE_TYPE = "change_type";
+
+        /**
+         * Possible values for the change type
+         */
+        public static final int CHANGE_RESET = 0;
+        public static final int CHANGE_INSERT = 1;
+        public static final int CHANGE_UPDATE = 2;
+        public static final int CHANGE_DELETE = 3;
+
+        /**
+         * @return the URI of the changes after the given sequence number.
+         */
+        public static Uri buildChangesUri(long sinceSeq) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SINCE, String.valueOf(sinceSeq))
+                    .build();
+        }
+    }
 }
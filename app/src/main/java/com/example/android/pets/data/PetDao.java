@@ -0,0 +1,179 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.List;
+
+/**
+ * Typed access to the pets, for callers running in the same process as the pet provider.
+ *
+ * Pets are passed as Pet objects straight to the provider instance, without the ContentValues
+ * and binder marshalling of a ContentResolver call. Writes go through the same validation, row
+ * cache and change notifications as the provider's own, so cursors and loaders of the pet list
+ * see them as usual.
+ */
+public final class PetDao {
+
+    /**
+     * Columns read into a pet, in order
+     */
+    private static final String[] PET_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    /**
+     * Client keeping the provider alive until the DAO is closed
+     */
+    private final ContentProviderClient providerClient;
+
+    /**
+     * Provider instance of this process
+     */
+    private final PetProvider petProvider;
+
+    /**
+     * @param context Context of the app.
+     * @throws IllegalStateException if the pet provider doesn't run in this process.
+     */
+    public PetDao(Context context) {
+        providerClient = context.getContentResolver().acquireContentProviderClient(PetContract.CONTENT_AUTHORITY);
+        if (providerClient == null) {
+            throw new IllegalStateException("Cannot find the pet provider");
+        }
+        if (!(providerClient.getLocalContentProvider() instanceof PetProvider)) {
+            providerClient.release();
+            throw new IllegalStateException("The pet provider doesn't run in this process");
+        }
+        petProvider = (PetProvider) providerClient.getLocalContentProvider();
+    }
+
+    /**
+     * Release the provider. The DAO can't be used any more.
+     */
+    public void close() {
+        providerClient.release();
+    }
+
+    /**
+     * Insert a new pet, and set its _id.
+     *
+     * @return whether the pet was inserted.
+     * @throws IllegalArgumentException if the pet isn't valid.
+     */
+    public boolean insert(Pet pet) {
+        long newPetId = petProvider.insertPet(pet);
+        if (newPetId == -1) {
+            return false;
+        }
+        pet.setId(newPetId);
+        return true;
+    }
+
+    /**
+     * Update all the attributes of the pet with the _id of the given one.
+     *
+     * @return whether there was such a pet to update.
+     * @throws IllegalArgumentException if the pet isn't valid.
+     */
+    public boolean update(Pet pet) {
+        return petProvider.updatePet(pet);
+    }
+
+    /**
+     * Delete a pet, or all pets. Deleted pets can be restored until they're purged.
+     *
+     * @param petsUri URI of a pet, or PetEntry.CONTENT_URI for all pets.
+     * @return the number of pets deleted.
+     */
+    public int delete(Uri petsUri) {
+        return delete(petsUri, PetTombstones.newDeletionTime());
+    }
+
+    /**
+     * Delete a pet, or all pets, marking them with the given deletion time.
+     *
+     * @param petsUri     URI of a pet, or PetEntry.CONTENT_URI for all pets.
+     * @param deletedAtMs Time of the deletion, from PetTombstones.newDeletionTime(), which
+     *                    restoreDeleted() takes to undo it.
+     * @return the number of pets deleted.
+     */
+    int delete(Uri petsUri, long deletedAtMs) {
+        return petProvider.delete(petsUri, null, null, deletedAtMs);
+    }
+
+    /**
+     * Restore the pets of a deletion, if they weren't purged yet. Pets deleted before or after
+     * stay deleted.
+     *
+     * @param deletedAtMs Time of the deletion to undo, as given to delete().
+     * @return the number of pets restored.
+     */
+    public int restoreDeleted(long deletedAtMs) {
+        ContentValues values = new ContentValues();
+        values.putNull(PetEntry.COLUMN_PET_DELETED_AT);
+        return petProvider.update(PetEntry.CONTENT_DELETED_URI, values, PetEntry.COLUMN_PET_DELETED_AT + " = ?",
+                new String[] { String.valueOf(deletedAtMs) });
+    }
+
+    /**
+     * Run writes of this DAO as one batch, in a single transaction, with the change notifications
+     * held back until it commits.
+     *
+     * @param nbWrites Number of writes in the batch.
+     */
+    <T> T applyBatch(PetProvider.Batch<T> batch, int nbWrites) throws OperationApplicationException {
+        return petProvider.applyBatch(batch, nbWrites);
+    }
+
+    /**
+     * Read a pet.
+     *
+     * @param petId _id of the pet.
+     * @param pet   Filled with the pet's attributes if found.
+     * @return whether there is such a pet.
+     */
+    public boolean get(long petId, Pet pet) {
+        return petProvider.readPet(petId, pet);
+    }
+
+    /**
+     * List pets, reusing the pets already in the list. The list ends up with one pet per row,
+     * the extra pets of the list being dropped.
+     *
+     * @param petsUri PetEntry.CONTENT_URI, with any filter, sort and pagination query parameters.
+     * @param pets    Filled with the listed pets.
+     * @return the number of pets listed.
+     */
+    public int list(Uri petsUri, List<Pet> pets) {
+        Cursor cursor = petProvider.query(petsUri, PET_COLUMNS, null, null, null);
+        try {
+            int nbPets = 0;
+            while (cursor.moveToNext()) {
+                Pet pet;
+                if (nbPets < pets.size()) {
+                    pet = pets.get(nbPets);
+                } else {
+                    pet = new Pet();
+                    pets.add(pet);
+                }
+                pet.set(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getInt(3), cursor.getInt(4));
+                nbPets++;
+            }
+            pets.subList(nbPets, pets.size()).clear();
+            return nbPets;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -1,10 +1,23 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static com.example.android.pets.data.PetContract.PetEntry; // To leverage our contract constants
 
 /**
@@ -18,21 +31,248 @@ public class PetDbHelper extends SQLiteOpenHelper {
     /**
      * Essential database variables.
      */
-    public static final int DATABASE_VERSION = 1; // Starts at 1 by convention
+    public static final int DATABASE_VERSION = 8; // Starts at 1 by convention
     public static final String DATABASE_NAME = "shelter.db";
 
+    /**
+     * Write-ahead log tuning.
+     *
+     * Writes come in bursts (editor saves, bulk imports), so the commit-time checkpoint only kicks
+     * in as a safety net once the log gets large. Checkpoints are otherwise run in the background
+     * after write bursts, and the log file is truncated back to a bounded size afterwards.
+     */
+    public static final int WAL_AUTOCHECKPOINT_PAGES = 10000;
+    public static final long WAL_SIZE_LIMIT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * How long the database goes without writes before its maintenance runs.
+     */
+    public static final long MAINTENANCE_IDLE_DELAY_MS = 30 * 1000;
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = PetDbHelper.class.getSimpleName();
+
+    /**
+     * Number of pets read ahead by the warm-up, about the first screen of the catalog
+     */
+    private static final int WARM_UP_PETS = 50;
+
+    /**
+     * Background thread opening the database, running write-ahead log checkpoints, purging
+     * tombstones and running the maintenance, off the main and writers' threads
+     */
+    private final ScheduledExecutorService backgroundExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Maintenance of the database, only run on the background thread
+     */
+    private final PetMaintenance maintenance = new PetMaintenance();
+
+    /**
+     * Maintenance waiting for the database to be idle, guarded by this
+     */
+    private ScheduledFuture<?> idleMaintenance;
+
+    /**
+     * Whether a checkpoint, or a purge of the tombstones, is already waiting to run
+     */
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+    private final AtomicBoolean purgeScheduled = new AtomicBoolean();
+
     /**
      * Database helper class constructor.
      *
+     * Write-ahead logging lets readers keep reading from their own connections while a writer holds
+     * a long transaction. The framework sizes the pool of reader connections for the device.
+     *
      * @param context General info about the current state of the app.
      */
     public PetDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Called when the database connection is being configured, before the schema is created or
+     * upgraded. Tunes the write-ahead log of the writing connection, and has new databases use
+     * incremental auto_vacuum.
+     *
+     * @param database The database being configured.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase database) {
+        // The connection is already in WAL mode here, where auto_vacuum only changes with a
+        // VACUUM. That's instant while a new database is still empty, so switch it now; older
+        // databases are switched by the maintenance.
+        if (!database.isReadOnly() && DatabaseUtils.longForQuery(database,
+                "SELECT COUNT(*) FROM sqlite_master", null) == 0) {
+            runPragma(database, "PRAGMA auto_vacuum = " + PetMaintenance.AUTO_VACUUM_INCREMENTAL);
+            database.execSQL("VACUUM");
+        }
+        runPragma(database, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+        runPragma(database, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES);
+    }
+
+    /**
+     * Schedule a passive checkpoint of the write-ahead log on a background thread. Meant to be
+     * called after a burst of writes; requests made while a checkpoint is pending are merged.
+     * The maintenance is pushed back until the database is idle again.
+     */
+    public void scheduleCheckpoint() {
+        scheduleMaintenance();
+        if (!checkpointScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                checkpointScheduled.set(false);
+                try {
+                    // A passive checkpoint never waits for readers or writers
+                    runPragma(getWritableDatabase(), "PRAGMA wal_checkpoint(PASSIVE)");
+                } catch (SQLiteException e) {
+                    Log.w(LOG_TAG, "Write-ahead log checkpoint failed", e);
+                }
+            }
+        });
     }
 
     /**
-     * Called when a database is created for the first time. Creates the database tables and
-     * initial content.
+     * Schedule a purge of the old tombstones on a background thread. Requests made while a purge
+     * is pending are merged.
+     *
+     * @param retentionMs How long tombstones are kept, and deleted pets can be restored.
+     */
+    public void schedulePurge(final long retentionMs) {
+        if (!purgeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                purgeScheduled.set(false);
+                try {
+                    long startMs = SystemClock.elapsedRealtime();
+                    int nbPurged = PetTombstones.purgeDeletedBefore(getWritableDatabase(),
+                            System.currentTimeMillis() - retentionMs);
+                    if (nbPurged != 0) {
+                        Log.i(LOG_TAG, "Purged " + nbPurged + " deleted pets in "
+                                + (SystemClock.elapsedRealtime() - startMs) + " ms");
+                        // Give the freed pages back once the database is idle
+                        scheduleMaintenance();
+                    }
+                } catch (SQLiteException e) {
+                    Log.w(LOG_TAG, "Purge of deleted pets failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedule the maintenance on a background thread, once the database has gone
+     * MAINTENANCE_IDLE_DELAY_MS without being scheduled again.
+     */
+    public synchronized void scheduleMaintenance() {
+        if (idleMaintenance != null) {
+            idleMaintenance.cancel(false);
+        }
+        idleMaintenance = backgroundExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintenance.run(getWritableDatabase(), false);
+                } catch (SQLiteException e) {
+                    Log.w(LOG_TAG, "Database maintenance failed", e);
+                }
+            }
+        }, MAINTENANCE_IDLE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the maintenance now, on the background thread, and wait for it. Unlike the idle
+     * maintenance, it gives back free pages however few there are.
+     *
+     * @return the PetContract.KEY_MAINTENANCE_* values of the run.
+     */
+    public Bundle runMaintenance() {
+        try {
+            return backgroundExecutor.submit(new Callable<Bundle>() {
+                @Override
+                public Bundle call() {
+                    return maintenance.run(getWritableDatabase(), true);
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Database maintenance failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the database maintenance", e);
+        }
+    }
+
+    /**
+     * Open the database on a background thread, creating or upgrading it if needed, then warm it
+     * up: read the first pets into the page cache, and compile the given statements into the
+     * statement cache of the writing connection.
+     *
+     * Queries made in the meantime wait in getReadableDatabase() until the database is open, but
+     * not for the rest of the warm-up. The maintenance is scheduled for when the database is idle.
+     *
+     * @param statements SQL of the statements to compile ahead.
+     */
+    public void warmUp(final String[] statements) {
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long startMs = SystemClock.elapsedRealtime();
+                    SQLiteDatabase database = getWritableDatabase();
+                    long openedMs = SystemClock.elapsedRealtime();
+
+                    Cursor cursor = database.query(PetEntry.TABLE_NAME, null, PetTombstones.SQL_WHERE_LIVE, null, null, null,
+                            PetEntry._ID, String.valueOf(WARM_UP_PETS));
+                    try {
+                        cursor.getCount();
+                    } finally {
+                        cursor.close();
+                    }
+                    for (String statement : statements) {
+                        database.compileStatement(statement).close();
+                    }
+
+                    Log.i(LOG_TAG, "Database opened in " + (openedMs - startMs) + " ms, warmed up in "
+                            + (SystemClock.elapsedRealtime() - openedMs) + " ms");
+                } catch (SQLiteException e) {
+                    // Queries will open the database themselves, and report the error to their callers
+                    Log.e(LOG_TAG, "Database warm-up failed", e);
+                }
+            }
+        });
+        scheduleMaintenance();
+    }
+
+    /**
+     * Run a PRAGMA statement. PRAGMAs that return a row have to go through rawQuery.
+     */
+    private static void runPragma(SQLiteDatabase database, String pragma) {
+        Cursor cursor = database.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Called when a database is created for the first time. Creates the version 1 tables, then
+     * applies every migration so new and upgraded databases end up with the same schema.
      *
      * @param database The database to populate.
      */
@@ -53,19 +293,20 @@ public class PetDbHelper extends SQLiteOpenHelper {
 
          // Create table and populate database with it
         database.execSQL(SQL_CREATE_ENTRIES);
-    }
-    
-    public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
-        // This database is only a cache for pet data, so its upgrade policy is simply to start over:
-        // delete all tables in the database and create new tables from scratch
-
-        // Build SQL statement for deleting table
-        String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + PetEntry.TABLE_NAME;
 
-        // Check SQL statements syntax
-        Log.e("SQL_DELETE_ENTRIES: ", SQL_DELETE_ENTRIES);
+        // Bring the version 1 schema up to date
+        PetMigrations.migrate(database, 1, DATABASE_VERSION);
+    }
 
-        database.execSQL(SQL_DELETE_ENTRIES); // Delete database tables
-        onCreate(database); // Create database tables
+    /**
+     * Called when the database needs to be upgraded. Applies, in order, the migrations between
+     * the two versions, keeping existing pet data.
+     *
+     * @param database   The database to upgrade.
+     * @param oldVersion The current version of the database.
+     * @param newVersion The version to upgrade to.
+     */
+    public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+        PetMigrations.migrate(database, oldVersion, newVersion);
     }
 }
@@ -0,0 +1,219 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Streams the pets table into a pipe as CSV or JSON, in constant memory.
+ *
+ * Pets are read in _id order, one chunk of EXPORT_CHUNK_SIZE rows at a time, and written out as
+ * they are read, so a consumer can save a table of any size straight to disk. Each chunk sees the
+ * pets committed when it is read; every pet is exported at most once.
+ */
+final class PetExporter implements ContentProvider.PipeDataWriter<Void> {
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = PetExporter.class.getSimpleName();
+
+    /**
+     * Number of pets read per query
+     */
+    private static final int EXPORT_CHUNK_SIZE = 1000;
+
+    /**
+     * Size of the buffer in front of the pipe
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Exported columns, in order
+     */
+    private static final String[] EXPORT_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    /**
+     * Database helper object
+     */
+    private final PetDbHelper petDbHelper;
+
+    /**
+     * Selection restricting the exported pets, and its arguments
+     */
+    private final String selection;
+    private final String[] selectionArgs;
+
+    /**
+     * @param petDbHelper   Helper of the database to export.
+     * @param selection     Selection restricting the exported pets, null to export them all.
+     * @param selectionArgs Arguments of the selection.
+     */
+    PetExporter(PetDbHelper petDbHelper, String selection, String[] selectionArgs) {
+        this.petDbHelper = petDbHelper;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs != null ? selectionArgs : new String[0];
+    }
+
+    /**
+     * Write the pets into the pipe, on the pipe's own thread.
+     *
+     * @param output    Writing end of the pipe.
+     * @param uri       Export URI.
+     * @param mimeType  PetEntry.EXPORT_TYPE_CSV or PetEntry.EXPORT_TYPE_JSON.
+     * @param opts      Unused.
+     * @param args      Unused.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, Void args) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output.getFileDescriptor()), Charset.forName("UTF-8")), BUFFER_SIZE);
+        try {
+            if (PetEntry.EXPORT_TYPE_JSON.equals(mimeType)) {
+                writeJson(writer);
+            } else {
+                writeCsv(writer);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Most likely the reader closed its end of the pipe
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close export of " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * Write the pets as CSV, with a header line.
+     */
+    private void writeCsv(Writer writer) throws IOException {
+        for (int column = 0; column < EXPORT_COLUMNS.length; column++) {
+            writer.write(column == 0 ? "" : ",");
+            writer.write(EXPORT_COLUMNS[column]);
+        }
+        writer.write("\r\n");
+
+        long lastId = 0;
+        Cursor chunk;
+        while ((chunk = queryChunk(lastId)) != null) {
+            try {
+                while (chunk.moveToNext()) {
+                    lastId = chunk.getLong(0);
+                    writer.write(Long.toString(lastId));
+                    writer.write(',');
+                    writeCsvField(writer, chunk.getString(1));
+                    writer.write(',');
+                    writeCsvField(writer, chunk.getString(2));
+                    writer.write(',');
+                    writer.write(Integer.toString(chunk.getInt(3)));
+                    writer.write(',');
+                    writer.write(Integer.toString(chunk.getInt(4)));
+                    writer.write("\r\n");
+                }
+            } finally {
+                chunk.close();
+            }
+        }
+    }
+
+    /**
+     * Write a CSV text field, quoting it when needed. Null is written as an empty field, and the
+     * empty string as an empty quoted field, so that the import tells them apart.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean needsQuotes = value.isEmpty();
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!needsQuotes) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Write the pets as a JSON array of objects, one per pet.
+     */
+    private void writeJson(Writer writer) throws IOException {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginArray();
+
+        long lastId = 0;
+        Cursor chunk;
+        while ((chunk = queryChunk(lastId)) != null) {
+            try {
+                while (chunk.moveToNext()) {
+                    lastId = chunk.getLong(0);
+                    jsonWriter.beginObject();
+                    jsonWriter.name(PetEntry._ID).value(lastId);
+                    jsonWriter.name(PetEntry.COLUMN_PET_NAME).value(chunk.getString(1));
+                    jsonWriter.name(PetEntry.COLUMN_PET_BREED).value(chunk.getString(2));
+                    jsonWriter.name(PetEntry.COLUMN_PET_GENDER).value(chunk.getInt(3));
+                    jsonWriter.name(PetEntry.COLUMN_PET_WEIGHT).value(chunk.getInt(4));
+                    jsonWriter.endObject();
+                }
+            } finally {
+                chunk.close();
+            }
+        }
+
+        jsonWriter.endArray();
+        jsonWriter.flush();
+    }
+
+    /**
+     * Query the next chunk of pets after the given _id.
+     *
+     * @return the chunk, or null once there are no pets left.
+     */
+    private Cursor queryChunk(long lastId) {
+        // The chunk bound comes after the export selection and its arguments
+        String chunkSelection = PetEntry._ID + " > ?";
+        if (selection != null) {
+            chunkSelection = "(" + selection + ") AND " + chunkSelection;
+        }
+        String[] chunkSelectionArgs = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
+        chunkSelectionArgs[selectionArgs.length] = Long.toString(lastId);
+
+        SQLiteDatabase petDatabase = petDbHelper.getReadableDatabase();
+        Cursor chunk = petDatabase.query(PetEntry.TABLE_NAME, EXPORT_COLUMNS, chunkSelection, chunkSelectionArgs,
+                null, null, PetEntry._ID, String.valueOf(EXPORT_CHUNK_SIZE));
+        if (chunk.getCount() == 0) {
+            chunk.close();
+            return null;
+        }
+        return chunk;
+    }
+}
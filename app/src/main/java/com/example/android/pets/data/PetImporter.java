@@ -0,0 +1,454 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Imports pets from a CSV or JSON stream, in the formats produced by the pet export.
+ *
+ * The stream is read one record at a time. Each record is checked with the same rules as a pet
+ * inserted through the provider, and valid pets are written IMPORT_CHUNK_SIZE at a time, each
+ * chunk in its own transaction, so memory use stays flat whatever the size of the input. Invalid
+ * records are reported and skipped without stopping the import.
+ *
+ * The app itself doesn't import pets: like the export, this is API for code that loads pet files
+ * into the database, such as backup tools and tests.
+ */
+public final class PetImporter {
+
+    /**
+     * Number of pets written per transaction
+     */
+    public static final int IMPORT_CHUNK_SIZE = 1000;
+
+    /**
+     * Maximum number of row errors kept in the result -- the rest are only counted
+     */
+    public static final int MAX_REPORTED_ERRORS = 100;
+
+    /**
+     * Size of the buffer in front of the input stream
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Listener for the progress of an import.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called on the importing thread after each chunk is written.
+         *
+         * @param nbRecordsRead     Number of records read so far.
+         * @param nbPetsImported    Number of pets written so far.
+         */
+        void onProgress(int nbRecordsRead, int nbPetsImported);
+    }
+
+    /**
+     * Error on one record of the input.
+     */
+    public static final class RowError {
+        private final int recordNumber;
+        private final String message;
+
+        RowError(int recordNumber, String message) {
+            this.recordNumber = recordNumber;
+            this.message = message;
+        }
+
+        /**
+         * @return the number of the record in the input, starting at 1 after any header.
+         */
+        public int getRecordNumber() {
+            return recordNumber;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "Record " + recordNumber + ": " + message;
+        }
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class Result {
+        private final int nbRecordsRead;
+        private final int nbPetsImported;
+        private final int nbErrors;
+        private final List<RowError> errors;
+
+        Result(int nbRecordsRead, int nbPetsImported, int nbErrors, List<RowError> errors) {
+            this.nbRecordsRead = nbRecordsRead;
+            this.nbPetsImported = nbPetsImported;
+            this.nbErrors = nbErrors;
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        public int getNbRecordsRead() {
+            return nbRecordsRead;
+        }
+
+        public int getNbPetsImported() {
+            return nbPetsImported;
+        }
+
+        /**
+         * @return the number of records that couldn't be imported.
+         */
+        public int getNbErrors() {
+            return nbErrors;
+        }
+
+        /**
+         * @return the first MAX_REPORTED_ERRORS errors, in input order.
+         */
+        public List<RowError> getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Content resolver the pets are inserted through
+     */
+    private final ContentResolver contentResolver;
+
+    /**
+     * Listener notified after each chunk, may be null
+     */
+    private final ProgressListener progressListener;
+
+    /**
+     * Chunk of valid pets waiting to be written. The content values are reused from chunk to chunk.
+     */
+    private final ContentValues[] chunk = new ContentValues[IMPORT_CHUNK_SIZE];
+    private int chunkSize;
+
+    /**
+     * Record number of each pet of the chunk, for reporting errors on write
+     */
+    private final int[] chunkRecordNumbers = new int[IMPORT_CHUNK_SIZE];
+
+    /**
+     * Progress of the current import
+     */
+    private int nbRecordsRead;
+    private int nbPetsImported;
+    private int nbErrors;
+    private List<RowError> errors;
+
+    /**
+     * @param contentResolver  Content resolver the pets are inserted through.
+     * @param progressListener Listener notified after each chunk, may be null.
+     */
+    public PetImporter(ContentResolver contentResolver, ProgressListener progressListener) {
+        this.contentResolver = contentResolver;
+        this.progressListener = progressListener;
+        for (int i = 0; i < IMPORT_CHUNK_SIZE; i++) {
+            chunk[i] = new ContentValues();
+        }
+    }
+
+    /**
+     * Import pets from a UTF-8 CSV stream, whose first line names the columns. The name, breed,
+     * gender and weight columns are read, any other column is ignored. An empty field is read as
+     * null, and an empty quoted field as the empty string.
+     *
+     * @param input Stream to read, not closed by this method.
+     * @return the outcome of the import.
+     * @throws IOException if the stream can't be read, or has no header line.
+     */
+    public Result importCsv(InputStream input) throws IOException {
+        startImport();
+        Reader reader = new BufferedReader(new InputStreamReader(input, Charset.forName("UTF-8")), BUFFER_SIZE);
+
+        // Find the columns we're interested in
+        ArrayList<String> fields = new ArrayList<>();
+        if (!readCsvRecord(reader, fields)) {
+            throw new IOException("CSV input has no header line");
+        }
+        int nameColumn = fields.indexOf(PetEntry.COLUMN_PET_NAME);
+        int breedColumn = fields.indexOf(PetEntry.COLUMN_PET_BREED);
+        int genderColumn = fields.indexOf(PetEntry.COLUMN_PET_GENDER);
+        int weightColumn = fields.indexOf(PetEntry.COLUMN_PET_WEIGHT);
+
+        while (readCsvRecord(reader, fields)) {
+            // Skip blank lines
+            if (fields.size() == 1 && fields.get(0) == null) {
+                continue;
+            }
+            addRecord(csvField(fields, nameColumn), csvField(fields, breedColumn),
+                    csvField(fields, genderColumn), csvField(fields, weightColumn));
+        }
+
+        return finishImport();
+    }
+
+    /**
+     * Import pets from a UTF-8 JSON stream holding an array of objects, one per pet. The name,
+     * breed, gender and weight members are read, any other member is ignored.
+     *
+     * @param input Stream to read, not closed by this method.
+     * @return the outcome of the import.
+     * @throws IOException if the stream can't be read, or isn't an array of objects.
+     */
+    public Result importJson(InputStream input) throws IOException {
+        startImport();
+        JsonReader jsonReader = new JsonReader(
+                new BufferedReader(new InputStreamReader(input, Charset.forName("UTF-8")), BUFFER_SIZE));
+
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            String name = null;
+            String breed = null;
+            String gender = null;
+            String weight = null;
+
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                switch (jsonReader.nextName()) {
+                    case PetEntry.COLUMN_PET_NAME:
+                        name = nextJsonValue(jsonReader);
+                        break;
+                    case PetEntry.COLUMN_PET_BREED:
+                        breed = nextJsonValue(jsonReader);
+                        break;
+                    case PetEntry.COLUMN_PET_GENDER:
+                        gender = nextJsonValue(jsonReader);
+                        break;
+                    case PetEntry.COLUMN_PET_WEIGHT:
+                        weight = nextJsonValue(jsonReader);
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                        break;
+                }
+            }
+            jsonReader.endObject();
+
+            addRecord(name, breed, gender, weight);
+        }
+        jsonReader.endArray();
+
+        return finishImport();
+    }
+
+    /**
+     * Reset the progress counters for a new import.
+     */
+    private void startImport() {
+        chunkSize = 0;
+        nbRecordsRead = 0;
+        nbPetsImported = 0;
+        nbErrors = 0;
+        errors = new ArrayList<>();
+    }
+
+    /**
+     * Write the last chunk and return the outcome of the import.
+     */
+    private Result finishImport() {
+        writeChunk();
+        Result result = new Result(nbRecordsRead, nbPetsImported, nbErrors, errors);
+        errors = null;
+        return result;
+    }
+
+    /**
+     * Check one record and add it to the chunk, writing the chunk once it is full.
+     * All attributes are given as text, null when missing.
+     */
+    private void addRecord(String name, String breed, String gender, String weight) {
+        nbRecordsRead++;
+
+        ContentValues petContentValues = chunk[chunkSize];
+        petContentValues.clear();
+        try {
+            petContentValues.put(PetEntry.COLUMN_PET_NAME, name);
+            petContentValues.put(PetEntry.COLUMN_PET_BREED, breed);
+            if (gender != null) {
+                petContentValues.put(PetEntry.COLUMN_PET_GENDER, parseInt(PetEntry.COLUMN_PET_GENDER, gender));
+            }
+            if (weight != null && !weight.isEmpty()) {
+                petContentValues.put(PetEntry.COLUMN_PET_WEIGHT, parseInt(PetEntry.COLUMN_PET_WEIGHT, weight));
+            }
+
+            // Same rules as a pet inserted through the provider
+            PetProvider.validateNewPet(petContentValues);
+        } catch (IllegalArgumentException e) {
+            reportError(nbRecordsRead, e.getMessage());
+            return;
+        }
+
+        chunkRecordNumbers[chunkSize] = nbRecordsRead;
+        chunkSize++;
+        if (chunkSize == IMPORT_CHUNK_SIZE) {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Write the pets of the chunk in one transaction, and report progress.
+     */
+    private void writeChunk() {
+        if (chunkSize == 0) {
+            return;
+        }
+
+        ContentValues[] chunkToWrite = chunkSize == IMPORT_CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, chunkSize);
+        try {
+            nbPetsImported += contentResolver.bulkInsert(PetEntry.CONTENT_URI, chunkToWrite);
+        } catch (SQLException e) {
+            // The whole chunk was rolled back
+            for (int i = 0; i < chunkSize; i++) {
+                reportError(chunkRecordNumbers[i], "Failed to write pet: " + e.getMessage());
+            }
+        }
+        chunkSize = 0;
+
+        if (progressListener != null) {
+            progressListener.onProgress(nbRecordsRead, nbPetsImported);
+        }
+    }
+
+    /**
+     * Count an error, and keep it if there aren't too many already.
+     */
+    private void reportError(int recordNumber, String message) {
+        nbErrors++;
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            errors.add(new RowError(recordNumber, message));
+        }
+    }
+
+    /**
+     * Parse an integer attribute, reporting bad values like the provider's validation does.
+     */
+    private static int parseInt(String attribute, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Pet " + attribute + " must be an integer: " + value);
+        }
+    }
+
+    /**
+     * Read a JSON value as text, null for a JSON null.
+     */
+    private static String nextJsonValue(JsonReader jsonReader) throws IOException {
+        JsonToken token = jsonReader.peek();
+        if (token == JsonToken.NULL) {
+            jsonReader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(jsonReader.nextBoolean());
+        }
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return jsonReader.nextString();
+        }
+        // Arrays and objects aren't valid pet attributes
+        jsonReader.skipValue();
+        return "";
+    }
+
+    /**
+     * Get a CSV field by column, null if the column is missing.
+     */
+    private static String csvField(List<String> fields, int column) {
+        if (column < 0 || column >= fields.size()) {
+            return null;
+        }
+        return fields.get(column);
+    }
+
+    /**
+     * Read one CSV record: fields separated by commas, optionally quoted with double quotes, with
+     * doubled quotes inside quoted fields. Quoted fields may span several lines.
+     *
+     * @param reader Reader to read from.
+     * @param fields Receives the fields of the record, null for an empty field that isn't quoted.
+     * @return false at the end of the input.
+     */
+    private static boolean readCsvRecord(Reader reader, List<String> fields) throws IOException {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        int c = reader.read();
+        if (c == -1) {
+            return false;
+        }
+
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted CSV field");
+                } else if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        reader.reset();
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(csvFieldValue(field, wasQuoted));
+                field.setLength(0);
+                wasQuoted = false;
+            } else if (c == '\n' || c == -1) {
+                fields.add(csvFieldValue(field, wasQuoted));
+                return true;
+            } else if (c == '\r') {
+                // Part of a CRLF line ending
+                reader.mark(1);
+                if (reader.read() != '\n') {
+                    reader.reset();
+                }
+                fields.add(csvFieldValue(field, wasQuoted));
+                return true;
+            } else {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+
+    /**
+     * @return the text of a CSV field, null if it's empty and wasn't quoted.
+     */
+    private static String csvFieldValue(StringBuilder field, boolean quoted) {
+        if (field.length() == 0 && !quoted) {
+            return null;
+        }
+        return field.toString();
+    }
+}
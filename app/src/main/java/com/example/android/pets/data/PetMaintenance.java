@@ -0,0 +1,152 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Upkeep of the pet database, run by PetDbHelper in the background once the database is idle.
+ *
+ * The database uses incremental auto_vacuum, so the pages freed by deletes and purges are kept
+ * on a free list instead of being given back to the file system right away. Each run gives back
+ * a bounded number of them, a step at a time, so that writers only ever wait for one step. Each
+ * run also refreshes the statistics the query planner picks indexes with, and compacts the pet
+ * change log.
+ *
+ * New databases are switched to incremental auto_vacuum by PetDbHelper while they're still empty.
+ * Databases created before that are switched by a full VACUUM, on their first maintenance run.
+ */
+final class PetMaintenance {
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = PetMaintenance.class.getSimpleName();
+
+    /**
+     * Value of PRAGMA auto_vacuum for incremental auto_vacuum
+     */
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Pages given back per incremental vacuum step, each step being its own transaction, and the
+     * most steps per run
+     */
+    private static final int VACUUM_STEP_PAGES = 128;
+    private static final int MAX_VACUUM_STEPS = 32;
+
+    /**
+     * Free pages below which an idle run leaves the free list alone, since new pets reuse them
+     */
+    private static final int MIN_FREE_PAGES = 64;
+
+    /**
+     * Flags of PRAGMA optimize: analyze the tables that need it, all of them rather than only
+     * those this connection queried. SQLite versions that don't know a flag ignore it.
+     */
+    private static final int OPTIMIZE_FLAGS = 0x10002;
+
+    /**
+     * Whether ANALYZE already ran in this process, on SQLite versions without PRAGMA optimize.
+     */
+    private boolean analyzed;
+
+    /**
+     * Run the maintenance on the given database. Must not be called inside a transaction.
+     *
+     * @param database Writable pet database.
+     * @param manual   Whether the run was asked for, in which case the free list is shrunk
+     *                 however small it is.
+     * @return the PetContract.KEY_MAINTENANCE_* values of the run.
+     */
+    Bundle run(SQLiteDatabase database, boolean manual) {
+        long startMs = SystemClock.elapsedRealtime();
+        long sizeBefore = getDatabaseSize(database);
+        long freePagesBefore = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+
+        // Switch older databases to incremental auto_vacuum, which rewrites the whole file once
+        boolean fullVacuum = DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL;
+        if (fullVacuum) {
+            database.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+            database.execSQL("VACUUM");
+        }
+
+        // Compact the change log first, so the pages it frees are given back below
+        int nbChangesDropped = PetChangeLog.trim(database);
+
+        // Refresh the query planner statistics
+        if (supportsOptimize(database)) {
+            drainPragma(database, "PRAGMA optimize(" + OPTIMIZE_FLAGS + ")");
+        } else if (!analyzed) {
+            database.execSQL("ANALYZE");
+            analyzed = true;
+        }
+
+        // Give back free pages, a bounded step at a time
+        int nbVacuumSteps = 0;
+        long freePages = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        if (manual || freePages >= MIN_FREE_PAGES) {
+            while (freePages > 0 && nbVacuumSteps < MAX_VACUUM_STEPS) {
+                drainPragma(database, "PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+                nbVacuumSteps++;
+                freePages = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+            }
+        }
+
+        // The file only shrinks once the write-ahead log is checkpointed
+        if (fullVacuum || nbVacuumSteps != 0) {
+            drainPragma(database, "PRAGMA wal_checkpoint(PASSIVE)");
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(PetContract.KEY_MAINTENANCE_DURATION_MS, SystemClock.elapsedRealtime() - startMs);
+        result.putLong(PetContract.KEY_MAINTENANCE_SIZE_BEFORE, sizeBefore);
+        result.putLong(PetContract.KEY_MAINTENANCE_SIZE_AFTER, getDatabaseSize(database));
+        result.putLong(PetContract.KEY_MAINTENANCE_FREE_PAGES_BEFORE, freePagesBefore);
+        result.putLong(PetContract.KEY_MAINTENANCE_FREE_PAGES_AFTER, freePages);
+        result.putBoolean(PetContract.KEY_MAINTENANCE_FULL_VACUUM, fullVacuum);
+        result.putInt(PetContract.KEY_MAINTENANCE_CHANGES_DROPPED, nbChangesDropped);
+
+        Log.i(LOG_TAG, "Database maintenance took " + result.getLong(PetContract.KEY_MAINTENANCE_DURATION_MS) +
+                " ms" + (fullVacuum ? " with a full vacuum" : "") + ", " + nbVacuumSteps + " vacuum steps: " +
+                sizeBefore + " -> " + result.getLong(PetContract.KEY_MAINTENANCE_SIZE_AFTER) + " bytes, " +
+                freePagesBefore + " -> " + freePages + " free pages, " + nbChangesDropped + " changes dropped");
+        return result;
+    }
+
+    /**
+     * @return the size on disk of the database file and its write-ahead log, in bytes.
+     */
+    private static long getDatabaseSize(SQLiteDatabase database) {
+        return new File(database.getPath()).length() + new File(database.getPath() + "-wal").length();
+    }
+
+    /**
+     * Whether the SQLite of the device has PRAGMA optimize, from version 3.18.
+     */
+    private static boolean supportsOptimize(SQLiteDatabase database) {
+        String[] version = DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null).split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        return major > 3 || (major == 3 && minor >= 18);
+    }
+
+    /**
+     * Run a PRAGMA statement to completion. Some PRAGMAs do their work a row at a time, such as
+     * incremental_vacuum, which gives back one page per row.
+     */
+    private static void drainPragma(SQLiteDatabase database, String pragma) {
+        Cursor cursor = database.rawQuery(pragma, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
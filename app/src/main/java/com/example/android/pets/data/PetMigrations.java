@@ -0,0 +1,194 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Ordered registry of the schema migrations applied by PetDbHelper.
+ *
+ * Each migration moves the database from version N to version N + 1 and must keep existing data.
+ * Migrations are applied one after the other, and the duration of each one is recorded in the
+ * migrations log table.
+ */
+final class PetMigrations {
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = PetMigrations.class.getSimpleName();
+
+    /**
+     * Migrations log table and its columns
+     */
+    static final String TABLE_MIGRATIONS_LOG = "schema_migrations";
+    static final String COLUMN_VERSION = "version";
+    static final String COLUMN_APPLIED_AT = "applied_at";
+    static final String COLUMN_DURATION_MS = "duration_ms";
+
+    /**
+     * A single schema step, from one database version to the next.
+     */
+    interface Migration {
+
+        /**
+         * Apply the step to the given database.
+         *
+         * @param database The database to migrate, inside the upgrade transaction.
+         */
+        void migrate(SQLiteDatabase database);
+    }
+
+    /**
+     * All migrations, in order: MIGRATIONS[i] moves the database from version i + 1 to i + 2.
+     * The last entry must therefore leave the database at PetDbHelper.DATABASE_VERSION.
+     */
+    private static final Migration[] MIGRATIONS = {
+
+            // 1 -> 2: Start recording migrations
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    database.execSQL("CREATE TABLE " + TABLE_MIGRATIONS_LOG + " (" +
+                            COLUMN_VERSION + " INTEGER PRIMARY KEY, " +
+                            COLUMN_APPLIED_AT + " INTEGER NOT NULL, " +
+                            COLUMN_DURATION_MS + " INTEGER NOT NULL);");
+                }
+            },
+
+            // 2 -> 3: Index the common access paths of the pets table
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    database.execSQL("CREATE INDEX " + PetEntry.INDEX_NAME + " ON " + PetEntry.TABLE_NAME +
+                            " (" + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE);");
+                    database.execSQL("CREATE INDEX " + PetEntry.INDEX_BREED + " ON " + PetEntry.TABLE_NAME +
+                            " (" + PetEntry.COLUMN_PET_BREED + ");");
+                    database.execSQL("CREATE INDEX " + PetEntry.INDEX_GENDER_WEIGHT + " ON " + PetEntry.TABLE_NAME +
+                            " (" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ");");
+                }
+            },
+
+            // 3 -> 4: Full-text index over names and breeds, kept in sync by triggers
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    String ftsColumns = PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED;
+
+                    // External content table: the text itself stays in the pets table
+                    database.execSQL("CREATE VIRTUAL TABLE " + PetEntry.FTS_TABLE_NAME + " USING fts4(" +
+                            "content=\"" + PetEntry.TABLE_NAME + "\", " + ftsColumns + ");");
+
+                    // Remove the old text before a row changes, and index the new text after
+                    database.execSQL("CREATE TRIGGER pets_fts_before_update BEFORE UPDATE OF " + ftsColumns +
+                            " ON " + PetEntry.TABLE_NAME + " BEGIN " +
+                            "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;");
+                    database.execSQL("CREATE TRIGGER pets_fts_before_delete BEFORE DELETE" +
+                            " ON " + PetEntry.TABLE_NAME + " BEGIN " +
+                            "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;");
+                    database.execSQL("CREATE TRIGGER pets_fts_after_update AFTER UPDATE OF " + ftsColumns +
+                            " ON " + PetEntry.TABLE_NAME + " BEGIN " +
+                            "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, " + ftsColumns + ") VALUES (" +
+                            "new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME + ", new." + PetEntry.COLUMN_PET_BREED + "); END;");
+                    database.execSQL("CREATE TRIGGER pets_fts_after_insert AFTER INSERT" +
+                            " ON " + PetEntry.TABLE_NAME + " BEGIN " +
+                            "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, " + ftsColumns + ") VALUES (" +
+                            "new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME + ", new." + PetEntry.COLUMN_PET_BREED + "); END;");
+
+                    // Index the pets that are already there
+                    copyTable(database, PetEntry.TABLE_NAME, PetEntry.FTS_TABLE_NAME,
+                            "docid, " + ftsColumns, PetEntry._ID + ", " + ftsColumns);
+                }
+            },
+
+            // 4 -> 5: Trigger-maintained summary tables for shelter statistics
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    PetStatistics.createSchema(database);
+                }
+            },
+
+            // 5 -> 6: Trigger-maintained change log, for reading pet changes incrementally
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    PetChangeLog.createSchema(database);
+                }
+            },
+
+            // 6 -> 7: Soft deletion, with tombstones left out of indexes, statistics and changes
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    PetTombstones.createSchema(database);
+                }
+            },
+
+            // 7 -> 8: Index the weight on its own, for the weight sort without a gender filter
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    database.execSQL("CREATE INDEX " + PetEntry.INDEX_WEIGHT + " ON " + PetEntry.TABLE_NAME +
+                            " (" + PetEntry.COLUMN_PET_WEIGHT + ");");
+                }
+            }
+    };
+
+    /**
+     * Empty constructor -- this class only holds static helpers.
+     */
+    private PetMigrations() {}
+
+    /**
+     * Apply, in order, every migration needed to go from one version to another.
+     *
+     * @param database   The database to migrate.
+     * @param oldVersion The current version of the database.
+     * @param newVersion The version to migrate to.
+     */
+    static void migrate(SQLiteDatabase database, int oldVersion, int newVersion) {
+        if (newVersion - 1 > MIGRATIONS.length) {
+            throw new IllegalStateException("No migration registered to reach version " + newVersion);
+        }
+
+        for (int version = oldVersion; version < newVersion; version++) {
+            long startTime = SystemClock.elapsedRealtime();
+            MIGRATIONS[version - 1].migrate(database);
+            long durationMs = SystemClock.elapsedRealtime() - startTime;
+
+            // Record how long the step took
+            ContentValues logValues = new ContentValues();
+            logValues.put(COLUMN_VERSION, version + 1);
+            logValues.put(COLUMN_APPLIED_AT, System.currentTimeMillis());
+            logValues.put(COLUMN_DURATION_MS, durationMs);
+            database.insertWithOnConflict(TABLE_MIGRATIONS_LOG, null, logValues, SQLiteDatabase.CONFLICT_REPLACE);
+
+            Log.i(LOG_TAG, "Migrated database from version " + version + " to " + (version + 1) +
+                    " in " + durationMs + " ms");
+        }
+    }
+
+    /**
+     * Copy the rows of one table into another, in a single statement.
+     *
+     * The copy runs inside the upgrade transaction: committing part of it would leave a
+     * half-migrated schema under the old user_version if the process died, and the migration would
+     * then fail on the next start. Splitting the statement inside the same transaction wouldn't
+     * make it any shorter, only rescan the source table, so the copy is done in one go.
+     *
+     * @param database      The database holding both tables.
+     * @param sourceTable   Table to read from.
+     * @param targetTable   Table to write to.
+     * @param targetColumns Comma-separated columns of the target table to fill.
+     * @param sourceColumns Comma-separated expressions over the source table, one per target column.
+     */
+    static void copyTable(SQLiteDatabase database, String sourceTable, String targetTable,
+                          String targetColumns, String sourceColumns) {
+        database.execSQL("INSERT INTO " + targetTable + " (" + targetColumns + ") " +
+                "SELECT " + sourceColumns + " FROM " + sourceTable);
+    }
+}
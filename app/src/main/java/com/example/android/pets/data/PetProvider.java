@@ -1,16 +1,40 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public class PetProvider extends ContentProvider {
 
@@ -24,6 +48,47 @@ public class PetProvider extends ContentProvider {
      */
     private PetDbHelper petDbHelper;
 
+    /**
+     * URIs to notify once the batch running on the current thread commits, or null outside a batch
+     */
+    private final ThreadLocal<Set<Uri>> pendingNotifications = new ThreadLocal<>();
+
+    /**
+     * Recently read pets, served to single pet queries
+     */
+    private PetRowCache petRowCache;
+
+    /**
+     * Queries slower than a threshold, with their query plan
+     */
+    private PetSlowQueryLog slowQueryLog;
+
+    /**
+     * Compiled statements of the single pet writes
+     */
+    private final PetStatementCache statementCache = new PetStatementCache();
+
+    /**
+     * Latency and counters of the provider operations
+     */
+    private final PetProviderMetrics metrics = new PetProviderMetrics(PETS, URI_NAMES);
+
+    /**
+     * How long deleted pets are kept as tombstones, and can be restored, before they're purged
+     */
+    private long tombstoneRetentionMs;
+
+    /**
+     * Columns of a cached pet row, in order
+     */
+    private static final String[] CACHED_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
     /**
      * Uri matcher object
      */
@@ -34,29 +99,391 @@ public class PetProvider extends ContentProvider {
      */
     private static final int PETS = 100;
     private static final int PET_ID = 101;
+    private static final int PET_SEARCH = 102;
+    private static final int PET_STATS = 103;
+    private static final int PET_BREED_STATS = 104;
+    private static final int PET_EXPORT = 105;
+    private static final int PET_CHANGES = 106;
+    private static final int PET_DELETED = 107;
+
+    /**
+     * Name of each Uri matcher code, from PETS on, as shown in the metrics
+     */
+    private static final String[] URI_NAMES = { "pets", "pet", "search", "stats", "breed_stats", "export", "changes", "deleted" };
+
+    /**
+     * Rank of a search result: 0 when the name matched, 1 when only the breed did
+     */
+    private static final String COLUMN_SEARCH_RANK = "search_rank";
+
+    /**
+     * Pets matching a full-text query, with their search rank. Used as the FROM clause of search
+     * queries, so callers can keep using the plain pets column names. The offsets() of a match
+     * start with the index of the first column that matched, and name is column 0.
+     */
+    private static final String SQL_SEARCH_PETS = "(SELECT " + PetEntry.TABLE_NAME + ".*, " +
+            "CASE WHEN offsets(" + PetEntry.FTS_TABLE_NAME + ") LIKE '0 %' THEN 0 ELSE 1 END AS " + COLUMN_SEARCH_RANK +
+            " FROM " + PetEntry.FTS_TABLE_NAME + " JOIN " + PetEntry.TABLE_NAME +
+            " ON " + PetEntry.TABLE_NAME + "." + PetEntry._ID + " = " + PetEntry.FTS_TABLE_NAME + ".docid" +
+            " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH ?)";
+
+    /**
+     * Maximum number of pets whose listeners are notified one by one after a write. Beyond that,
+     * the whole pet list is notified at once.
+     */
+    static final int ROW_NOTIFICATION_LIMIT = 64;
+
+    /**
+     * Types a pet export can be streamed as, the default one first
+     */
+    private static final String[] EXPORT_TYPES = { PetEntry.EXPORT_TYPE_CSV, PetEntry.EXPORT_TYPE_JSON };
 
     // Add patterns to matcher
     static {
         uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH + "/*", PET_SEARCH);
+        uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, PET_STATS);
+        uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, PET_EXPORT);
+        uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, PET_CHANGES);
+        uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_DELETED, PET_DELETED);
+        uriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS, PET_BREED_STATS);
     }
 
     /**
      * Initialize the provider and the database helper object.
      *
+     * This runs on the main thread at process start, so the database is opened and warmed up on
+     * a background thread instead. Queries wait for it only if they come before it's open.
+     * Tombstones left from earlier runs are purged in the background as well.
+     *
      * @return true to signal that the provider loaded successfully.
      */
     @Override
     public boolean onCreate() {
         petDbHelper = new PetDbHelper(getContext());
+        petDbHelper.warmUp(PetStatementCache.SQL);
+        petRowCache = new PetRowCache(getContext().getResources().getInteger(R.integer.pet_row_cache_size));
+        slowQueryLog = new PetSlowQueryLog(getContext().getResources().getInteger(R.integer.slow_query_log_size),
+                getContext().getResources().getInteger(R.integer.slow_query_threshold_ms));
+        tombstoneRetentionMs = getContext().getResources().getInteger(R.integer.tombstone_retention_minutes) * 60000L;
+        petDbHelper.schedulePurge(tombstoneRetentionMs);
         return true;
     }
 
     /**
-     * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
+     * Whether a single pet query with the given projection can be served from the row cache.
+     */
+    private static boolean isCachedProjection(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        List<String> cachedColumns = Arrays.asList(CACHED_COLUMNS);
+        for (String column : projection) {
+            if (!cachedColumns.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Query a single pet through the row cache, reading and caching the whole row on a miss.
+     *
+     * @param petDatabase Database to read from on a miss.
+     * @param petId       _id of the pet.
+     * @param projection  Columns to include in the resulting cursor, all cached columns if null.
+     * @return a cursor with the pet's row, or no row if there is no such pet.
+     */
+    private Cursor queryCachedPet(SQLiteDatabase petDatabase, long petId, String[] projection) {
+        String[] columns = projection != null ? projection : CACHED_COLUMNS;
+        Object[] row = getCachedRow(petDatabase, petId);
+        if (row == null) {
+            return new MatrixCursor(columns, 0);
+        }
+
+        // Copy the requested columns of the row
+        List<String> cachedColumns = Arrays.asList(CACHED_COLUMNS);
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        MatrixCursor.RowBuilder rowBuilder = cursor.newRow();
+        for (String column : columns) {
+            rowBuilder.add(row[cachedColumns.indexOf(column)]);
+        }
+        return cursor;
+    }
+
+    /**
+     * Get the row of a pet from the row cache, reading and caching it on a miss.
+     *
+     * @return the values of the CACHED_COLUMNS of the pet, or null if there is no such live pet.
+     */
+    private Object[] getCachedRow(SQLiteDatabase petDatabase, long petId) {
+        Object[] row = petRowCache.get(petId);
+        if (row != null) {
+            return row;
+        }
+
+        // Remember the cache generation before reading, so a concurrent write can't be cached over
+        long generation = petRowCache.getGeneration();
+        Cursor rowCursor = petDatabase.query(PetEntry.TABLE_NAME, CACHED_COLUMNS, PetTombstones.whereLive(PetEntry._ID + "=?"),
+                new String[] { String.valueOf(petId) }, null, null, null);
+        try {
+            if (!rowCursor.moveToFirst()) {
+                return null;
+            }
+            row = new Object[] {
+                    rowCursor.getLong(0),
+                    rowCursor.getString(1),
+                    rowCursor.getString(2),
+                    rowCursor.getInt(3),
+                    rowCursor.getInt(4)
+            };
+        } finally {
+            rowCursor.close();
+        }
+        petRowCache.put(petId, row, generation);
+        return row;
+    }
+
+    /**
+     * Drop written pets from the row cache.
+     *
+     * @param uri    URI the write was made on.
+     * @param petIds _id of the written pets, or null if unknown.
+     */
+    private void invalidateCachedPets(Uri uri, long[] petIds) {
+        if (petIds != null) {
+            petRowCache.invalidate(petIds);
+        } else if (uriMatcher.match(uri) == PET_ID) {
+            petRowCache.invalidate(new long[] { ContentUris.parseId(uri) });
+        } else {
+            petRowCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Check the shelter statistics against the pets table, then rebuild them from it.
+     * Listeners of the statistics are notified if they were out of date.
+     *
+     * @return a bundle telling whether the statistics were consistent before the rebuild.
+     */
+    private Bundle rebuildStatistics() {
+        SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
+
+        boolean wereConsistent;
+        petDatabase.beginTransaction();
+        try {
+            wereConsistent = PetStatistics.isConsistent(petDatabase);
+            PetStatistics.rebuild(petDatabase);
+            petDatabase.setTransactionSuccessful();
+        } finally {
+            petDatabase.endTransaction();
+        }
+
+        if (!wereConsistent) {
+            Log.w(LOG_TAG, "Shelter statistics were out of date and have been rebuilt");
+            notifyChange(PetStatsEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(PetContract.KEY_STATS_WERE_CONSISTENT, wereConsistent);
+        return result;
+    }
+
+    /**
+     * Give all pets of a breed another breed, in a single statement.
+     *
+     * @param breed  Breed to rename.
+     * @param extras Holds the new breed under PetContract.KEY_NEW_BREED.
+     */
+    private Bundle renameBreed(String breed, Bundle extras) {
+        String newBreed = extras == null ? null : extras.getString(PetContract.KEY_NEW_BREED);
+        if (breed == null || newBreed == null) {
+            throw new IllegalArgumentException("Renaming a breed requires the breed and its new name");
+        }
+        return runBulkWrite("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_BREED + " = ?" +
+                " WHERE " + PetTombstones.whereLive(PetEntry.COLUMN_PET_BREED + " = ?"), new String[] { newBreed, breed });
+    }
+
+    /**
+     * Add to the weight of the pets matching a filter, in a single statement. Weights don't go
+     * below 0.
+     *
+     * @param filterUri Pets content URI whose filter query parameters select the pets, or null for all pets.
+     * @param extras    Holds the weight to add, possibly negative, under PetContract.KEY_WEIGHT_DELTA.
+     */
+    private Bundle adjustWeights(String filterUri, Bundle extras) {
+        if (extras == null || !extras.containsKey(PetContract.KEY_WEIGHT_DELTA)) {
+            throw new IllegalArgumentException("Adjusting weights requires a weight delta");
+        }
+        ArrayList<String> adjustArgs = new ArrayList<>();
+        adjustArgs.add(String.valueOf(extras.getInt(PetContract.KEY_WEIGHT_DELTA)));
+        String filter = buildBulkFilter(filterUri, adjustArgs);
+        return runBulkWrite("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_WEIGHT +
+                        " = MAX(0, " + PetEntry.COLUMN_PET_WEIGHT + " + ?) WHERE " + PetTombstones.whereLive(filter),
+                adjustArgs.toArray(new String[adjustArgs.size()]));
+    }
+
+    /**
+     * Delete the pets matching a filter, in a single statement. As with delete(), the pets become
+     * tombstones until the background purge.
+     *
+     * @param filterUri Pets content URI whose filter query parameters select the pets. At least
+     *                  one filter is required, delete() removes all pets.
+     */
+    private Bundle purgePets(String filterUri) {
+        ArrayList<String> purgeArgs = new ArrayList<>();
+        purgeArgs.add(String.valueOf(PetTombstones.newDeletionTime()));
+        String filter = buildBulkFilter(filterUri, purgeArgs);
+        if (filter == null) {
+            throw new IllegalArgumentException("Purging pets requires a filter");
+        }
+        Bundle result = runBulkWrite("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_DELETED_AT +
+                " = ? WHERE " + PetTombstones.whereLive(filter), purgeArgs.toArray(new String[purgeArgs.size()]));
+        petDbHelper.schedulePurge(tombstoneRetentionMs);
+        return result;
+    }
+
+    /**
+     * Turn the filter query parameters of a pets content URI into a selection.
+     *
+     * @param filterUri  Pets content URI, or null for no filter.
+     * @param filterArgs Receives the selection arguments.
+     * @return the selection, or null if there is no filter.
+     */
+    private static String buildBulkFilter(String filterUri, ArrayList<String> filterArgs) {
+        if (filterUri == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(filterUri);
+        if (uriMatcher.match(uri) != PETS) {
+            throw new IllegalArgumentException("Bulk operations filter the pets content URI: " + filterUri);
+        }
+        return buildFilteredSelection(uri, null, null, filterArgs);
+    }
+
+    /**
+     * Run a set-based write to the pets table in its own transaction. Since any pet may have
+     * changed, the row cache is dropped and listeners of the pet list are notified once.
+     *
+     * @return a bundle holding the number of pets written under PetContract.KEY_AFFECTED_ROWS.
+     */
+    private Bundle runBulkWrite(String sql, String[] args) {
+        SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
+        SQLiteStatement bulkStatement = petDatabase.compileStatement(sql);
+        int nbRowsAffected;
+        petDatabase.beginTransaction();
+        try {
+            bulkStatement.bindAllArgsAsStrings(args);
+            nbRowsAffected = bulkStatement.executeUpdateDelete();
+            petDatabase.setTransactionSuccessful();
+        } finally {
+            petDatabase.endTransaction();
+            bulkStatement.close();
+        }
+
+        if (nbRowsAffected != 0) {
+            petRowCache.invalidateAll();
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_AFFECTED_ROWS, nbRowsAffected);
+        return result;
+    }
+
+    /**
+     * Handle provider methods called through ContentResolver.call().
+     *
+     * @param method Name of the method, one of the PetContract.METHOD_* constants.
+     * @param arg    Argument of the method, if it takes one.
+     * @param extras Named arguments of the method, if it takes any.
+     * @return the result of the method.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case PetContract.METHOD_GET_ROW_CACHE_STATS:
+                Bundle stats = new Bundle();
+                stats.putInt(PetContract.KEY_ROW_CACHE_HITS, petRowCache.hitCount());
+                stats.putInt(PetContract.KEY_ROW_CACHE_MISSES, petRowCache.missCount());
+                stats.putInt(PetContract.KEY_ROW_CACHE_SIZE, petRowCache.size());
+                stats.putInt(PetContract.KEY_ROW_CACHE_MAX_SIZE, petRowCache.maxSize());
+                return stats;
+            case PetContract.METHOD_REBUILD_STATS:
+                return rebuildStatistics();
+            case PetContract.METHOD_GET_METRICS:
+                return metrics.snapshot();
+            case PetContract.METHOD_RESET_METRICS:
+                metrics.reset();
+                return null;
+            case PetContract.METHOD_RENAME_BREED:
+                return renameBreed(arg, extras);
+            case PetContract.METHOD_ADJUST_WEIGHTS:
+                return adjustWeights(arg, extras);
+            case PetContract.METHOD_PURGE_PETS:
+                return purgePets(arg);
+            case PetContract.METHOD_GET_LAST_CHANGE_SEQ:
+                Bundle lastChange = new Bundle();
+                lastChange.putLong(PetContract.KEY_CHANGE_SEQ, PetChangeLog.getLastSeq(petDbHelper.getReadableDatabase()));
+                return lastChange;
+            case PetContract.METHOD_GET_SLOW_QUERIES:
+                Bundle slowQueries = new Bundle();
+                slowQueries.putLong(PetContract.KEY_SLOW_QUERY_THRESHOLD_MS, slowQueryLog.getThresholdMs());
+                slowQueries.putParcelableArrayList(PetContract.KEY_SLOW_QUERIES, slowQueryLog.getEntries());
+                return slowQueries;
+            case PetContract.METHOD_CLEAR_SLOW_QUERIES:
+                slowQueryLog.clear();
+                return null;
+            case PetContract.METHOD_SET_SLOW_QUERY_THRESHOLD:
+                try {
+                    slowQueryLog.setThresholdMs(Long.parseLong(arg));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Slow query threshold must be an integer: " + arg);
+                }
+                return null;
+            case PetContract.METHOD_RUN_MAINTENANCE:
+                return petDbHelper.runMaintenance();
+            default:
+                throw new IllegalArgumentException("Unknown method: " + method);
+        }
+    }
+
+    /**
+     * Perform the query for the given URI, and measure it.
      */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Perform the query for the given URI, and measure it. The query stops early, with an
+     * OperationCanceledException, once the cancellation signal is canceled.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.QUERY, uriMatcher.match(uri));
+        try {
+            Cursor cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal);
+            // Fill the cursor window now, so the time spent running the query is measured as well
+            operation.setRowCount(cursor.getCount());
+            return cursor;
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
+     * The cancellation signal, if any, is handed down to SQLite.
+     */
+    private Cursor queryUri(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder,
+                            CancellationSignal cancellationSignal) {
 
         // Open readable pet database
         SQLiteDatabase petDatabase = petDbHelper.getReadableDatabase();
@@ -71,7 +498,15 @@ public class PetProvider extends ContentProvider {
                 // For the PETS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
-                cursor = petDatabase.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                // Filter and sort query parameters, if any, are folded into the selection and sort order.
+                // Deleted pets are left out.
+                ArrayList<String> filteredSelectionArgs = new ArrayList<>();
+                selection = PetTombstones.whereLive(
+                        buildFilteredSelection(uri, selection, selectionArgs, filteredSelectionArgs));
+                selectionArgs = filteredSelectionArgs.toArray(new String[filteredSelectionArgs.size()]);
+                sortOrder = buildSortOrder(uri, sortOrder);
+                cursor = runQuery(petDatabase, PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        sortOrder, buildLimit(uri), cancellationSignal);
                 break;
             case PET_ID:
                 // Perform row query on pets table
@@ -83,9 +518,74 @@ public class PetProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
-                selection = PetEntry._ID + "=?";
+                //
+                // Plain lookups of a single pet, such as the editor's, are served from the row cache.
+                if (selection == null && sortOrder == null && isCachedProjection(projection)) {
+                    cursor = queryCachedPet(petDatabase, ContentUris.parseId(uri), projection);
+                    break;
+                }
+                selection = PetTombstones.whereLive(PetEntry._ID + "=?");
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri))};
-                cursor = petDatabase.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = runQuery(petDatabase, PetEntry.TABLE_NAME, projection, selection, selectionArgs, sortOrder, null,
+                        cancellationSignal);
+                break;
+            case PET_SEARCH:
+                // Perform full-text search on pet names and breeds
+                // The full-text index finds the matching pets, ranked with name matches first.
+                // The given selection, selection arguments and sort order further refine the results.
+                String matchQuery = buildMatchQuery(uri.getLastPathSegment());
+                if (matchQuery == null) {
+                    // Nothing searchable in the query, so nothing matches
+                    cursor = new MatrixCursor(projection != null ? projection : new String[] { PetEntry._ID });
+                    break;
+                }
+                ArrayList<String> searchSelectionArgs = new ArrayList<>();
+                searchSelectionArgs.add(matchQuery);
+                if (selectionArgs != null) {
+                    searchSelectionArgs.addAll(Arrays.asList(selectionArgs));
+                }
+                cursor = runQuery(petDatabase, SQL_SEARCH_PETS, projection, selection,
+                        searchSelectionArgs.toArray(new String[searchSelectionArgs.size()]),
+                        sortOrder != null ? sortOrder : COLUMN_SEARCH_RANK + ", " + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE",
+                        buildLimit(uri), cancellationSignal);
+                break;
+            case PET_STATS:
+                // Read the statistics per gender from their summary table
+                cursor = runQuery(petDatabase, PetStatistics.SQL_GENDER_STATS, projection, selection, selectionArgs,
+                        sortOrder != null ? sortOrder : PetStatsEntry.COLUMN_PET_GENDER, null, cancellationSignal);
+                break;
+            case PET_BREED_STATS:
+                // Read the top breeds from their summary table
+                String limit = buildLimit(uri);
+                cursor = runQuery(petDatabase, PetStatistics.SQL_BREED_STATS, projection, selection, selectionArgs,
+                        sortOrder != null ? sortOrder : PetStatsEntry.COLUMN_PET_COUNT + " DESC",
+                        limit != null ? limit : String.valueOf(PetStatsEntry.TOP_BREEDS_LIMIT), cancellationSignal);
+                break;
+            case PET_CHANGES:
+                // Read the latest change of each pet changed after the given sequence number
+                // If the log was compacted past it, tell the reader to start over instead
+                long sinceSeq = parseLongParameter(PetChangeEntry.QUERY_PARAM_SINCE,
+                        uri.getQueryParameter(PetChangeEntry.QUERY_PARAM_SINCE));
+                long horizonSeq = PetChangeLog.getHorizon(petDatabase);
+                if (sinceSeq < horizonSeq) {
+                    cursor = buildChangeResetCursor(projection, horizonSeq);
+                    break;
+                }
+                ArrayList<String> changeSelectionArgs = new ArrayList<>();
+                changeSelectionArgs.add(String.valueOf(sinceSeq));
+                if (selectionArgs != null) {
+                    changeSelectionArgs.addAll(Arrays.asList(selectionArgs));
+                }
+                cursor = runQuery(petDatabase, PetChangeLog.SQL_CHANGES_SINCE, projection, selection,
+                        changeSelectionArgs.toArray(new String[changeSelectionArgs.size()]),
+                        sortOrder != null ? sortOrder : PetChangeEntry.COLUMN_CHANGE_SEQ, buildLimit(uri),
+                        cancellationSignal);
+                break;
+            case PET_DELETED:
+                // Read the deleted pets not purged yet, most recently deleted first
+                cursor = runQuery(petDatabase, PetEntry.TABLE_NAME, projection, PetTombstones.whereTombstone(selection),
+                        selectionArgs, sortOrder != null ? sortOrder : PetEntry.COLUMN_PET_DELETED_AT + " DESC",
+                        buildLimit(uri), cancellationSignal);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI: " + uri);
@@ -94,12 +594,246 @@ public class PetProvider extends ContentProvider {
         // Set notification URI on cursor so we know what content URI the cursor was created for.
         // If data at this URI changes, then we know we need to update the cursor.
         // In short, bind cursor to specific data URI, and make it listen for changes in that data.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // Statistics, changes and deleted pets change with every pet, so they listen for changes to any pet.
+        if (match == PET_STATS || match == PET_BREED_STATS || match == PET_CHANGES || match == PET_DELETED) {
+            cursor.setNotificationUri(getContext().getContentResolver(), PetEntry.CONTENT_URI);
+        } else {
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        }
 
         // Return cursor
         return cursor;
     }
 
+    /**
+     * Run a query and fill its first cursor window, logging it with its query plan if it's slow.
+     *
+     * @param table              Table, or subquery, to query.
+     * @param limit              LIMIT clause, or null for no limit.
+     * @param cancellationSignal Signal stopping the query while SQLite runs it, may be null.
+     * @return the cursor of the query.
+     */
+    private Cursor runQuery(SQLiteDatabase petDatabase, String table, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder, String limit,
+                            CancellationSignal cancellationSignal) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, table, projection, selection, null, null,
+                sortOrder, limit);
+        long startNs = System.nanoTime();
+        Cursor cursor = petDatabase.rawQuery(sql, selectionArgs, cancellationSignal);
+        int nbRows;
+        try {
+            // Filling the window is where SQLite actually runs the query, and where it gets canceled
+            nbRows = cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        long elapsedMs = (System.nanoTime() - startNs) / 1000000;
+        if (slowQueryLog.isSlow(elapsedMs)) {
+            slowQueryLog.record(petDatabase, sql, selectionArgs, nbRows, elapsedMs);
+        }
+        return cursor;
+    }
+
+    /**
+     * Build the single row cursor telling a change reader that the changes it asked for were
+     * compacted away.
+     *
+     * @param projection Columns of the cursor, the change log columns if null.
+     * @param horizonSeq Sequence number the log was compacted up to.
+     */
+    private static Cursor buildChangeResetCursor(String[] projection, long horizonSeq) {
+        String[] columns = projection != null ? projection
+                : new String[] { PetChangeEntry.COLUMN_CHANGE_SEQ, PetEntry._ID, PetChangeEntry.COLUMN_CHANGE_TYPE };
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        MatrixCursor.RowBuilder rowBuilder = cursor.newRow();
+        for (String column : columns) {
+            if (PetChangeEntry.COLUMN_CHANGE_SEQ.equals(column)) {
+                rowBuilder.add(horizonSeq);
+            } else if (PetChangeEntry.COLUMN_CHANGE_TYPE.equals(column)) {
+                rowBuilder.add(PetChangeEntry.CHANGE_RESET);
+            } else {
+                rowBuilder.add(null);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Turn a user search query into a full-text MATCH expression where every word must match as
+     * a prefix. Characters with a special meaning in MATCH expressions are dropped.
+     *
+     * @return the MATCH expression, or null if the query holds no searchable word.
+     */
+    private static String buildMatchQuery(String searchQuery) {
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : searchQuery.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (matchQuery.length() != 0) {
+                matchQuery.append(' ');
+            }
+            // Lower case, so operator words such as OR are searched for as plain words
+            matchQuery.append(word.toLowerCase(Locale.ROOT)).append('*');
+        }
+        return matchQuery.length() == 0 ? null : matchQuery.toString();
+    }
+
+    /**
+     * Combine the caller's selection with the filter query parameters of the URI. Each filter is
+     * written so that one of the pets table indexes can serve it.
+     *
+     * @param uri                   URI holding the filter query parameters.
+     * @param selection             Caller's selection, may be null.
+     * @param selectionArgs         Caller's selection arguments, may be null.
+     * @param filteredSelectionArgs Receives the arguments of the returned selection.
+     * @return the combined selection, or null if there is nothing to filter on.
+     */
+    private static String buildFilteredSelection(Uri uri, String selection, String[] selectionArgs,
+                                                 ArrayList<String> filteredSelectionArgs) {
+
+        StringBuilder filteredSelection = new StringBuilder();
+
+        // Keep the caller's selection as is
+        if (!TextUtils.isEmpty(selection)) {
+            filteredSelection.append('(').append(selection).append(')');
+        }
+        if (selectionArgs != null) {
+            filteredSelectionArgs.addAll(Arrays.asList(selectionArgs));
+        }
+
+        // Name and breed are served by their own index
+        String name = uri.getQueryParameter(PetEntry.QUERY_PARAM_NAME);
+        if (name != null) {
+            appendFilter(filteredSelection, filteredSelectionArgs,
+                    PetEntry.COLUMN_PET_NAME + " = ? COLLATE NOCASE", name);
+        }
+        String breed = uri.getQueryParameter(PetEntry.QUERY_PARAM_BREED);
+        if (breed != null) {
+            appendFilter(filteredSelection, filteredSelectionArgs, PetEntry.COLUMN_PET_BREED + " = ?", breed);
+        }
+
+        // Gender and weight are served by the (gender, weight) index
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAM_GENDER);
+        String minWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT);
+        String maxWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT);
+        if (gender != null) {
+            if (!PetEntry.isValidGender(parseIntParameter(PetEntry.QUERY_PARAM_GENDER, gender))) {
+                throw new IllegalArgumentException("Invalid gender filter: " + gender);
+            }
+            appendFilter(filteredSelection, filteredSelectionArgs, PetEntry.COLUMN_PET_GENDER + " = ?", gender);
+        } else if (minWeight != null || maxWeight != null) {
+            // Without a gender, list every valid gender so the weight range can still use the index
+            appendFilter(filteredSelection, filteredSelectionArgs, PetEntry.COLUMN_PET_GENDER + " IN (" +
+                    PetEntry.GENDER_UNKNOWN + ", " + PetEntry.GENDER_MALE + ", " + PetEntry.GENDER_FEMALE + ")", null);
+        }
+        if (minWeight != null) {
+            parseIntParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT, minWeight);
+            appendFilter(filteredSelection, filteredSelectionArgs, PetEntry.COLUMN_PET_WEIGHT + " >= ?", minWeight);
+        }
+        if (maxWeight != null) {
+            parseIntParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT, maxWeight);
+            appendFilter(filteredSelection, filteredSelectionArgs, PetEntry.COLUMN_PET_WEIGHT + " <= ?", maxWeight);
+        }
+
+        // Keyset pagination bounds are served by the primary key
+        String afterId = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID);
+        if (afterId != null) {
+            parseLongParameter(PetEntry.QUERY_PARAM_AFTER_ID, afterId);
+            appendFilter(filteredSelection, filteredSelectionArgs, PetEntry._ID + " > ?", afterId);
+        }
+        String upToId = uri.getQueryParameter(PetEntry.QUERY_PARAM_UP_TO_ID);
+        if (upToId != null) {
+            parseLongParameter(PetEntry.QUERY_PARAM_UP_TO_ID, upToId);
+            appendFilter(filteredSelection, filteredSelectionArgs, PetEntry._ID + " <= ?", upToId);
+        }
+
+        return filteredSelection.length() == 0 ? null : filteredSelection.toString();
+    }
+
+    /**
+     * AND a single filter onto the selection being built, with its argument if it has one.
+     */
+    private static void appendFilter(StringBuilder selection, ArrayList<String> selectionArgs,
+                                     String filter, String filterArg) {
+        if (selection.length() != 0) {
+            selection.append(" AND ");
+        }
+        selection.append(filter);
+        if (filterArg != null) {
+            selectionArgs.add(filterArg);
+        }
+    }
+
+    /**
+     * Parse an integer query parameter, rejecting anything that isn't a number.
+     */
+    private static int parseIntParameter(String parameterName, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Query parameter " + parameterName + " must be an integer: " + value);
+        }
+    }
+
+    /**
+     * Parse a long query parameter, rejecting anything that isn't a number.
+     */
+    private static long parseLongParameter(String parameterName, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Query parameter " + parameterName + " must be an integer: " + value);
+        }
+    }
+
+    /**
+     * Turn the limit query parameter of the URI into a LIMIT clause.
+     *
+     * @return the LIMIT clause, or null if the URI has no limit.
+     */
+    private static String buildLimit(Uri uri) {
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        if (limit != null && parseIntParameter(PetEntry.QUERY_PARAM_LIMIT, limit) < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+        return limit;
+    }
+
+    /**
+     * Turn the sort query parameter of the URI into a sort order the pets table indexes can
+     * serve. An explicit sort order from the caller takes precedence. Keyset pagination always
+     * sorts by _id.
+     */
+    private static String buildSortOrder(Uri uri, String sortOrder) {
+        String sort = uri.getQueryParameter(PetEntry.QUERY_PARAM_SORT);
+
+        // Pages are only consistent in _id order
+        if (uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID) != null
+                || uri.getQueryParameter(PetEntry.QUERY_PARAM_UP_TO_ID) != null) {
+            if (sort != null || (sortOrder != null && !sortOrder.equals(PetEntry._ID))) {
+                throw new IllegalArgumentException("Keyset pagination only supports _id order: " + uri);
+            }
+            return PetEntry._ID;
+        }
+
+        if (sortOrder != null || sort == null) {
+            return sortOrder;
+        }
+
+        switch (sort) {
+            case PetEntry.SORT_NAME:
+                return PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE";
+            case PetEntry.SORT_BREED:
+                return PetEntry.COLUMN_PET_BREED;
+            case PetEntry.SORT_WEIGHT:
+                return PetEntry.COLUMN_PET_WEIGHT;
+            default:
+                throw new IllegalArgumentException("Unknown sort: " + sort);
+        }
+    }
+
     /**
      * Insert new data into the provider with the given content values.
      */
@@ -109,11 +843,21 @@ public class PetProvider extends ContentProvider {
         // Match URI to determine case
         final int match = uriMatcher.match(uri);
 
-        switch (match) {
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.INSERT, match);
+        try {
+            switch (match) {
+                case PETS:
+                    Uri newPetUri = insertPet(uri, contentValues);
+                    operation.setRowCount(newPetUri != null ? 1 : 0);
+                    return newPetUri;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
         }
     }
 
@@ -123,45 +867,273 @@ public class PetProvider extends ContentProvider {
     private Uri insertPet(Uri uri, ContentValues contentValues) {
 
         // Data validation
+        validateNewPet(contentValues);
+
+        // Open writable database
+        SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
+
+        // Insert a new pet into the pets database table with the given ContentValues
+        // The insert statement is compiled once and re-bound for every pet
+        SQLiteStatement insertStatement = statementCache.get(petDatabase, PetStatementCache.INSERT_PET);
+        bindNewPet(insertStatement, contentValues);
+        long newRowId = insertStatement.executeInsert();
+
+        // Handle insertion failure -- denoted by an id of -1
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for" + uri);
+            return null;
+        }
+
+        // The original URI with the id of the new pet appended
+        Uri newPetUri = ContentUris.withAppendedId(uri, newRowId);
+
+        // Notify the listeners of the new pet only
+        // Listeners of the whole pet list are notified as well, since the new pet is part of it
+        notifyChange(newPetUri);
+
+        // Return the URI of the new pet
+        return newPetUri;
+    }
+
+    /**
+     * Check that the given content values describe a valid new pet.
+     *
+     * @throws IllegalArgumentException if a required attribute is missing or invalid.
+     */
+    static void validateNewPet(ContentValues contentValues) {
+        Integer gender = contentValues.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+
+        // A missing weight defaults to 0, as in the table definition, but a null or non-numeric
+        // one is rejected, as the NOT NULL column would reject it
+        if (weight == null && contentValues.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+            throw new IllegalArgumentException("Pet requires a valid weight!");
+        }
+
+        // A missing gender is as wrong as an invalid one
+        validateNewPet(contentValues.getAsString(PetEntry.COLUMN_PET_NAME),
+                gender == null ? -1 : gender,
+                weight == null ? 0 : weight);
+    }
+
+    /**
+     * Check that the given attributes describe a valid pet.
+     *
+     * @throws IllegalArgumentException if a required attribute is missing or invalid.
+     */
+    static void validateNewPet(String name, int gender, int weight) {
 
         // Check that the name is not null
-        String name = contentValues.getAsString(PetEntry.COLUMN_PET_NAME);
         if (name == null) {
             throw new IllegalArgumentException("Pet requires a name!");
         }
 
         // Check that the gender isn't wrong
-        Integer gender = contentValues.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-        if (gender == null || !PetEntry.isValidGender(gender)) {
+        if (!PetEntry.isValidGender(gender)) {
             throw new IllegalArgumentException("Pet requires a gender!");
         }
 
         // Check that the weight isn't wrong
-        Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-        if (weight != null && weight < 0) {
-            throw new IllegalAccessError("Pet requires a valid weight!");
+        if (weight < 0) {
+            throw new IllegalArgumentException("Pet requires a valid weight!");
         }
 
         // No need to check the breed, since null is allowed
+    }
+
+    /**
+     * Insert a pet given as a Pet, with the same validation and notifications as insert().
+     * Used by PetDao, for callers in the same process.
+     *
+     * @return the _id of the new pet, or -1 if it couldn't be inserted.
+     */
+    long insertPet(Pet pet) {
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.INSERT, PETS);
+        try {
+            validateNewPet(pet.getName(), pet.getGender(), pet.getWeight());
+
+            SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
+            SQLiteStatement insertStatement = statementCache.get(petDatabase, PetStatementCache.INSERT_PET);
+            bindPet(insertStatement, pet);
+            long newRowId = insertStatement.executeInsert();
+            if (newRowId == -1) {
+                Log.e(LOG_TAG, "Failed to insert row for " + pet.getName());
+                return -1;
+            }
+
+            operation.setRowCount(1);
+            notifyChange(ContentUris.withAppendedId(PetEntry.CONTENT_URI, newRowId));
+            return newRowId;
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * Update all the attributes of a pet given as a Pet, with the same validation and
+     * notifications as update().
+     * Used by PetDao, for callers in the same process.
+     *
+     * @return whether the pet was found and updated.
+     */
+    boolean updatePet(Pet pet) {
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.UPDATE, PET_ID);
+        try {
+            validateNewPet(pet.getName(), pet.getGender(), pet.getWeight());
+
+            SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
+            SQLiteStatement updateStatement = statementCache.get(petDatabase, PetStatementCache.UPDATE_PET);
+            bindPet(updateStatement, pet);
+            updateStatement.bindLong(5, pet.getId());
+            int nbRowsUpdated = updateStatement.executeUpdateDelete();
+
+            operation.setRowCount(nbRowsUpdated);
+            if (nbRowsUpdated != 0) {
+                petRowCache.invalidate(new long[] { pet.getId() });
+                notifyChange(ContentUris.withAppendedId(PetEntry.CONTENT_URI, pet.getId()));
+            }
+            return nbRowsUpdated != 0;
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * Read a pet through the row cache, as a single pet query does.
+     * Used by PetDao, for callers in the same process.
+     *
+     * @param petId _id of the pet.
+     * @param pet   Filled with the pet's attributes if found.
+     * @return whether the pet was found.
+     */
+    boolean readPet(long petId, Pet pet) {
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.QUERY, PET_ID);
+        try {
+            Object[] row = getCachedRow(petDbHelper.getReadableDatabase(), petId);
+            if (row == null) {
+                return false;
+            }
+            operation.setRowCount(1);
+            pet.set((Long) row[0], (String) row[1], (String) row[2], (Integer) row[3], (Integer) row[4]);
+            return true;
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * Bind the attributes of a validated pet to the first four parameters of the compiled insert
+     * or update statement.
+     */
+    private static void bindPet(SQLiteStatement statement, Pet pet) {
+        statement.bindString(1, pet.getName());
+        if (pet.getBreed() == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, pet.getBreed());
+        }
+        statement.bindLong(3, pet.getGender());
+        statement.bindLong(4, pet.getWeight());
+    }
+
+    /**
+     * Insert many pets at once. All rows are validated first, then written in a single transaction
+     * through one compiled insert statement, and listeners are notified once at the end.
+     *
+     * @return the number of pets inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] contentValuesArray) {
+
+        // Match URI to determine case
+        final int match = uriMatcher.match(uri);
+
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.BULK_INSERT, match);
+        try {
+            switch (match) {
+                case PETS:
+                    int nbRowsInserted = bulkInsertPets(uri, contentValuesArray);
+                    operation.setRowCount(nbRowsInserted);
+                    return nbRowsInserted;
+                default:
+                    throw new IllegalArgumentException("Bulk insertion is not supported for " + uri);
+            }
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * Helper method for inserting many pets in the database in one transaction.
+     */
+    private int bulkInsertPets(Uri uri, ContentValues[] contentValuesArray) {
+
+        // Validate every row up front, so an invalid row rejects the whole batch before anything is written
+        for (ContentValues contentValues : contentValuesArray) {
+            validateNewPet(contentValues);
+        }
 
         // Open writable database
         SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
 
-        // Insert a new pet into the pets database table with the given ContentValues
-        long newRowId = petDatabase.insert(PetEntry.TABLE_NAME, null, contentValues);
+        // Re-bind the compiled insert statement for every row
+        SQLiteStatement insertStatement = statementCache.get(petDatabase, PetStatementCache.INSERT_PET);
+        int nbRowsInserted = 0;
 
-        // Handle insertion failure -- denoted by an id of -1
-        if (newRowId == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for" + uri);
-            return null;
+        petDatabase.beginTransaction();
+        try {
+            for (ContentValues contentValues : contentValuesArray) {
+                bindNewPet(insertStatement, contentValues);
+                if (insertStatement.executeInsert() != -1) {
+                    nbRowsInserted++;
+                }
+            }
+            petDatabase.setTransactionSuccessful();
+        } finally {
+            petDatabase.endTransaction();
+        }
+
+        // Notify all listeners once for the whole batch
+        if (nbRowsInserted != 0) {
+            notifyChange(uri);
+        }
+
+        // Return number of rows inserted
+        return nbRowsInserted;
+    }
+
+    /**
+     * Bind the attributes of a validated new pet to the compiled insert statement.
+     * Columns that aren't part of the contract are ignored.
+     */
+    private static void bindNewPet(SQLiteStatement insertStatement, ContentValues contentValues) {
+        insertStatement.clearBindings();
+        insertStatement.bindString(1, contentValues.getAsString(PetEntry.COLUMN_PET_NAME));
+
+        String breed = contentValues.getAsString(PetEntry.COLUMN_PET_BREED);
+        if (breed == null) {
+            insertStatement.bindNull(2);
+        } else {
+            insertStatement.bindString(2, breed);
         }
 
-        // Notify all listeners that the data has changed at the pet content URI
-        // uri: content://com.example.android.pets/pets
-        getContext().getContentResolver().notifyChange(uri, null);
+        insertStatement.bindLong(3, contentValues.getAsInteger(PetEntry.COLUMN_PET_GENDER));
 
-        // Return the original URI with the id of the new pet appended
-        return ContentUris.withAppendedId(uri, newRowId);
+        // Weight defaults to 0, as in the table definition
+        Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        insertStatement.bindLong(4, weight == null ? 0 : weight);
     }
 
     /**
@@ -172,15 +1144,31 @@ public class PetProvider extends ContentProvider {
 
         // Match URI to determine action to take
         final int match = uriMatcher.match(uri);
-        switch (match) {
-            case PetProvider.PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            case PetProvider.PET_ID:
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Update is not supported for: " + uri);
+
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.UPDATE, match);
+        try {
+            int nbRowsUpdated;
+            switch (match) {
+                case PetProvider.PETS:
+                    nbRowsUpdated = updatePet(uri, contentValues, selection, selectionArgs);
+                    break;
+                case PetProvider.PET_ID:
+                    // The pet is selected by the _id of the URI
+                    nbRowsUpdated = updatePet(uri, contentValues, null, null);
+                    break;
+                case PetProvider.PET_DELETED:
+                    nbRowsUpdated = restorePets(contentValues, selection, selectionArgs);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Update is not supported for: " + uri);
+            }
+            operation.setRowCount(nbRowsUpdated);
+            return nbRowsUpdated;
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
         }
     }
 
@@ -212,7 +1200,7 @@ public class PetProvider extends ContentProvider {
         // Check that the weight value is valid
         if (contentValues.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
             Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-            if (weight != null && weight < 0) {
+            if (weight == null || weight < 0) {
                 throw new IllegalArgumentException("Pet requires valid weight");
             }
         }
@@ -223,11 +1211,38 @@ public class PetProvider extends ContentProvider {
         SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
 
         // Update database and get the number of rows updated
-        int nbRowsUpdated = petDatabase.update(PetEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+        // A whole pet updated by _id, as the editor does, goes through the compiled update statement
+        // When updating by selection, find out which pets are updated in the same transaction
+        int nbRowsUpdated;
+        long[] updatedPetIds = null;
+        int match = uriMatcher.match(uri);
+        if (match == PET_ID && isWholePet(contentValues)) {
+            SQLiteStatement updateStatement = statementCache.get(petDatabase, PetStatementCache.UPDATE_PET);
+            bindWholePet(updateStatement, contentValues);
+            updateStatement.bindLong(5, ContentUris.parseId(uri));
+            nbRowsUpdated = updateStatement.executeUpdateDelete();
+        } else {
+            if (match == PET_ID) {
+                selection = PetEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+            }
+            selection = PetTombstones.whereLive(selection);
+            petDatabase.beginTransaction();
+            try {
+                if (match == PETS) {
+                    updatedPetIds = findPetIds(petDatabase, selection, selectionArgs);
+                }
+                nbRowsUpdated = petDatabase.update(PetEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+                petDatabase.setTransactionSuccessful();
+            } finally {
+                petDatabase.endTransaction();
+            }
+        }
 
-        // If 1 or more rows were updated, notify all listeners that the data at given URI has changed
+        // If 1 or more rows were updated, drop them from the row cache and notify the listeners of the updated pets
         if (nbRowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            invalidateCachedPets(uri, updatedPetIds);
+            notifyPetsChanged(uri, updatedPetIds);
         }
 
         // Return number of rows updated
@@ -235,45 +1250,435 @@ public class PetProvider extends ContentProvider {
     }
 
     /**
-     * Delete the data at the given selection and selection arguments.
+     * Restore the deleted pets matching the selection, which must not be purged yet.
+     *
+     * @param contentValues Must only set COLUMN_PET_DELETED_AT to null.
+     * @return the number of pets restored.
+     */
+    private int restorePets(ContentValues contentValues, String selection, String[] selectionArgs) {
+        if (contentValues.size() != 1 || !contentValues.containsKey(PetEntry.COLUMN_PET_DELETED_AT)
+                || contentValues.get(PetEntry.COLUMN_PET_DELETED_AT) != null) {
+            throw new IllegalArgumentException("Deleted pets can only be restored, by setting " +
+                    PetEntry.COLUMN_PET_DELETED_AT + " to null");
+        }
+
+        SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
+        selection = PetTombstones.whereTombstone(selection);
+
+        int nbRowsRestored;
+        long[] restoredPetIds;
+        petDatabase.beginTransaction();
+        try {
+            restoredPetIds = findPetIds(petDatabase, selection, selectionArgs);
+            nbRowsRestored = petDatabase.update(PetEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+            petDatabase.setTransactionSuccessful();
+        } finally {
+            petDatabase.endTransaction();
+        }
+
+        // The restored pets are back in the pet list
+        if (nbRowsRestored != 0) {
+            invalidateCachedPets(PetEntry.CONTENT_URI, restoredPetIds);
+            notifyPetsChanged(PetEntry.CONTENT_URI, restoredPetIds);
+        }
+        return nbRowsRestored;
+    }
+
+    /**
+     * Whether the content values hold all the attributes of a pet, and nothing else.
+     */
+    private static boolean isWholePet(ContentValues contentValues) {
+        return contentValues.size() == 4
+                && contentValues.containsKey(PetEntry.COLUMN_PET_NAME)
+                && contentValues.containsKey(PetEntry.COLUMN_PET_BREED)
+                && contentValues.containsKey(PetEntry.COLUMN_PET_GENDER)
+                && contentValues.containsKey(PetEntry.COLUMN_PET_WEIGHT);
+    }
+
+    /**
+     * Bind the attributes of a validated whole pet to the first four parameters of the compiled
+     * update statement.
+     */
+    private static void bindWholePet(SQLiteStatement updateStatement, ContentValues contentValues) {
+        updateStatement.bindString(1, contentValues.getAsString(PetEntry.COLUMN_PET_NAME));
+
+        String breed = contentValues.getAsString(PetEntry.COLUMN_PET_BREED);
+        if (breed == null) {
+            updateStatement.bindNull(2);
+        } else {
+            updateStatement.bindString(2, breed);
+        }
+
+        updateStatement.bindLong(3, contentValues.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+
+        Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (weight == null) {
+            updateStatement.bindNull(4);
+        } else {
+            updateStatement.bindLong(4, weight);
+        }
+    }
+
+    /**
+     * Delete the data at the given selection and selection arguments, and measure it.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return delete(uri, selection, selectionArgs, PetTombstones.newDeletionTime());
+    }
+
+    /**
+     * Delete the data at the given selection and selection arguments, marking deleted pets with
+     * the given deleted_at time, and measure it.
+     *
+     * @param deletedAtMs Time of the deletion, from PetTombstones.newDeletionTime(). Restoring the
+     *                    pets deleted at that time undoes this deletion, and no other.
+     */
+    int delete(Uri uri, String selection, String[] selectionArgs, long deletedAtMs) {
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.DELETE, uriMatcher.match(uri));
+        try {
+            int nbRowsDeleted = deletePets(uri, selection, selectionArgs, deletedAtMs);
+            operation.setRowCount(nbRowsDeleted);
+            return nbRowsDeleted;
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * Delete the data at the given selection and selection arguments.
+     *
+     * Pets are only marked as deleted, so that they can be restored, and purged later in the
+     * background. Deleting from the deleted pets URI purges them right away.
+     */
+    private int deletePets(Uri uri, String selection, String[] selectionArgs, long deletedAtMs) {
 
         // Open writable database
         SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
 
-        // Track the number of rows that were deleted
+        // Track the number of rows that were deleted, and which pets they were
         int nbRowsDeleted;
+        long[] deletedPetIds = null;
 
         // Match URI to determine case
         final int match = uriMatcher.match(uri);
 
+        // Deleted pets are marked with the time of their deletion
+        ContentValues tombstoneValues = new ContentValues();
+        tombstoneValues.put(PetEntry.COLUMN_PET_DELETED_AT, deletedAtMs);
+
         switch (match) {
             case PETS:
                 // Delete all rows in the database that match the selection and selection args
-                // and store the number of rows deleted
-                nbRowsDeleted = petDatabase.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                // and store the number of rows deleted, a chunk at a time
+                selection = PetTombstones.whereLive(selection);
+                long lastPetId = DatabaseUtils.longForQuery(petDatabase,
+                        "SELECT MAX(" + PetEntry._ID + ") FROM " + PetEntry.TABLE_NAME, null);
+                // Each chunk commits on its own, unless the delete is part of a batch, and pets
+                // inserted meanwhile are left alone
+                nbRowsDeleted = 0;
+                long chunkStartId = 0;
+                long chunkEndId;
+                do {
+                    petDatabase.beginTransaction();
+                    try {
+                        chunkEndId = PetTombstones.findTombstoneChunkEnd(petDatabase, selection, selectionArgs,
+                                chunkStartId, lastPetId);
+                        if (chunkEndId != 0) {
+                            String chunkSelection = PetTombstones.whereIdRange(selection);
+                            String[] chunkSelectionArgs = PetTombstones.idRangeArgs(chunkStartId, chunkEndId,
+                                    selectionArgs);
+
+                            // A single chunk holds every pet if there are few enough to notify one by one
+                            if (chunkStartId == 0) {
+                                deletedPetIds = findPetIds(petDatabase, chunkSelection, chunkSelectionArgs);
+                            }
+                            nbRowsDeleted += petDatabase.update(PetEntry.TABLE_NAME, tombstoneValues,
+                                    chunkSelection, chunkSelectionArgs);
+                            chunkStartId = chunkEndId;
+                        }
+                        petDatabase.setTransactionSuccessful();
+                    } finally {
+                        petDatabase.endTransaction();
+                    }
+                } while (chunkEndId != 0);
                 break;
             case PET_ID:
                 // Delete single row in database with given ID and store the number of rows deleted
-                selection = PetEntry._ID + "=?";
+                // A plain delete by _id goes through the compiled delete statement
+                if (selection == null) {
+                    SQLiteStatement deleteStatement = statementCache.get(petDatabase, PetStatementCache.DELETE_PET);
+                    deleteStatement.bindLong(1, deletedAtMs);
+                    deleteStatement.bindLong(2, ContentUris.parseId(uri));
+                    nbRowsDeleted = deleteStatement.executeUpdateDelete();
+                    break;
+                }
+                selection = PetTombstones.whereLive(PetEntry._ID + "=?");
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                nbRowsDeleted = petDatabase.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                nbRowsDeleted = petDatabase.update(PetEntry.TABLE_NAME, tombstoneValues, selection, selectionArgs);
                 break;
+            case PET_DELETED:
+                // Purge the matching deleted pets now, which no listener can see anymore
+                int nbRowsPurged = PetTombstones.purge(petDatabase, selection, selectionArgs);
+                if (nbRowsPurged != 0) {
+                    onWriteCommitted();
+                }
+                return nbRowsPurged;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for: " + uri);
         }
 
-        // If 1 or more rows were deleted, notify all listeners that data at given URI changed
+        // Purge the tombstones once they're old enough
         if (nbRowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            petDbHelper.schedulePurge(tombstoneRetentionMs);
+        }
+
+        // If 1 or more rows were deleted, drop them from the row cache and notify the listeners of the deleted pets
+        if (nbRowsDeleted != 0) {
+            invalidateCachedPets(uri, deletedPetIds);
+            notifyPetsChanged(uri, deletedPetIds);
         }
 
         // Return number of rows deleted
         return nbRowsDeleted;
     }
 
+    /**
+     * Writes applied as one batch, inside its transaction.
+     */
+    interface Batch<T> {
+
+        /**
+         * @return the results of the writes.
+         */
+        T apply() throws OperationApplicationException;
+    }
+
+    /**
+     * Apply a batch of operations in a single transaction, so the batch either commits or rolls
+     * back as a unit. Change notifications raised by the operations are held back until the batch
+     * commits, then sent once per distinct URI.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        return applyBatch(new Batch<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] apply() throws OperationApplicationException {
+                return PetProvider.super.applyBatch(operations);
+            }
+        }, operations.size());
+    }
+
+    /**
+     * Apply writes as one batch, with the same transaction and notifications as applyBatch().
+     * Used by PetDao, for callers in the same process.
+     *
+     * @param nbWrites Number of writes in the batch, as counted in the metrics.
+     */
+    <T> T applyBatch(Batch<T> batch, int nbWrites) throws OperationApplicationException {
+
+        // Nested batches on the same thread simply join the outer batch
+        if (pendingNotifications.get() != null) {
+            return batch.apply();
+        }
+
+        // Batches write to the pet list, so they are measured under its URI code
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.APPLY_BATCH, PETS);
+        try {
+            T results = applyBatchInTransaction(batch);
+            operation.setRowCount(nbWrites);
+            return results;
+        } catch (OperationApplicationException | RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * Apply a batch in a single transaction, then send its notifications.
+     */
+    private <T> T applyBatchInTransaction(Batch<T> batch) throws OperationApplicationException {
+
+        // Open writable database
+        SQLiteDatabase petDatabase = petDbHelper.getWritableDatabase();
+
+        // Collect notifications raised by the operations instead of sending them right away
+        Set<Uri> batchNotifications = new LinkedHashSet<>();
+        pendingNotifications.set(batchNotifications);
+
+        T results = null;
+        petDatabase.beginTransaction();
+        try {
+            results = batch.apply();
+            petDatabase.setTransactionSuccessful();
+        } finally {
+            petDatabase.endTransaction();
+            pendingNotifications.remove();
+
+            // Rows read inside the batch may have been cached with values it rolled back
+            if (results == null) {
+                petRowCache.invalidateAll();
+            }
+        }
+
+        // Rows read from other connections while the batch was running may be stale, so drop them
+        if (!batchNotifications.isEmpty()) {
+            petRowCache.invalidateAll();
+        }
+
+        // The batch committed, so notify listeners once per changed URI
+        // Past a point, a single notification for the whole pet list is cheaper for everyone
+        ContentResolver contentResolver = getContext().getContentResolver();
+        if (batchNotifications.size() > ROW_NOTIFICATION_LIMIT) {
+            contentResolver.notifyChange(PetEntry.CONTENT_URI, null);
+            metrics.countNotifications(1);
+        } else {
+            for (Uri changedUri : batchNotifications) {
+                contentResolver.notifyChange(changedUri, null);
+            }
+            metrics.countNotifications(batchNotifications.size());
+        }
+
+        onWriteCommitted();
+
+        return results;
+    }
+
+    /**
+     * Find the _id of the pets matching a selection, so that a write to them can be notified
+     * pet by pet.
+     *
+     * @return the _id of the matching pets, or null if there are more than ROW_NOTIFICATION_LIMIT.
+     */
+    private static long[] findPetIds(SQLiteDatabase petDatabase, String selection, String[] selectionArgs) {
+        Cursor idCursor = petDatabase.query(PetEntry.TABLE_NAME, new String[] { PetEntry._ID },
+                selection, selectionArgs, null, null, null, String.valueOf(ROW_NOTIFICATION_LIMIT + 1));
+        try {
+            if (idCursor.getCount() > ROW_NOTIFICATION_LIMIT) {
+                return null;
+            }
+            long[] petIds = new long[idCursor.getCount()];
+            for (int i = 0; idCursor.moveToNext(); i++) {
+                petIds[i] = idCursor.getLong(0);
+            }
+            return petIds;
+        } finally {
+            idCursor.close();
+        }
+    }
+
+    /**
+     * Notify the listeners of the given pets that they have changed. Listeners of the whole pet
+     * list are notified as well, since those pets are part of it.
+     *
+     * @param uri    URI the write was made on.
+     * @param petIds _id of the changed pets, or null to notify all listeners of the given URI.
+     */
+    private void notifyPetsChanged(Uri uri, long[] petIds) {
+        if (petIds == null) {
+            notifyChange(uri);
+            return;
+        }
+        for (long petId : petIds) {
+            notifyChange(ContentUris.withAppendedId(PetEntry.CONTENT_URI, petId));
+        }
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed. Inside a batch, the
+     * notification is deferred until the batch commits.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchNotifications = pendingNotifications.get();
+        if (batchNotifications != null) {
+            batchNotifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+            metrics.countNotifications(1);
+
+            // Every write outside a batch ends with its notifications
+            onWriteCommitted();
+        }
+    }
+
+    /**
+     * Epilogue of every committed write to the pets: checkpoint the write burst, and push the
+     * idle maintenance back, both in the background.
+     */
+    private void onWriteCommitted() {
+        petDbHelper.scheduleCheckpoint();
+    }
+
+    /**
+     * Return the stream types the content URI can be opened as, among those matching the filter.
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (uriMatcher.match(uri) != PET_EXPORT) {
+            return null;
+        }
+
+        ArrayList<String> streamTypes = new ArrayList<>();
+        for (String exportType : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(exportType, mimeTypeFilter)) {
+                streamTypes.add(exportType);
+            }
+        }
+        return streamTypes.isEmpty() ? null : streamTypes.toArray(new String[streamTypes.size()]);
+    }
+
+    /**
+     * Open a pet export as a stream of the first export type matching the filter.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        String[] streamTypes = getStreamTypes(uri, mimeTypeFilter);
+        if (streamTypes == null) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        return new AssetFileDescriptor(openExportPipe(uri, streamTypes[0], opts), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Open a pet export as a stream, in the format given by the format query parameter.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (uriMatcher.match(uri) != PET_EXPORT) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Pet exports are read-only: " + uri);
+        }
+
+        String format = uri.getQueryParameter(PetEntry.QUERY_PARAM_FORMAT);
+        if (format == null || PetEntry.FORMAT_CSV.equals(format)) {
+            return openExportPipe(uri, PetEntry.EXPORT_TYPE_CSV, null);
+        } else if (PetEntry.FORMAT_JSON.equals(format)) {
+            return openExportPipe(uri, PetEntry.EXPORT_TYPE_JSON, null);
+        }
+        throw new FileNotFoundException("Unknown export format: " + format);
+    }
+
+    /**
+     * Start streaming the pets into a pipe, on a background thread, and return its reading end.
+     * The filter query parameters of the URI restrict the exported pets.
+     */
+    private ParcelFileDescriptor openExportPipe(Uri uri, String mimeType, Bundle opts) throws FileNotFoundException {
+        ArrayList<String> exportSelectionArgs = new ArrayList<>();
+        String exportSelection = PetTombstones.whereLive(buildFilteredSelection(uri, null, null, exportSelectionArgs));
+        PetExporter petExporter = new PetExporter(petDbHelper, exportSelection,
+                exportSelectionArgs.toArray(new String[exportSelectionArgs.size()]));
+        return openPipeHelper(uri, mimeType, opts, null, petExporter);
+    }
+
     /**
      * Return the MIME type of data for the content URI.
      */
@@ -283,13 +1688,33 @@ public class PetProvider extends ContentProvider {
         // Match URI to determine path to follow
         final int match = uriMatcher.match(uri);
 
-        switch (match) {
-            case PETS:
-                return PetEntry.CONTENT_LIST_TYPE; // When the URI operates on the entire database
-            case PET_ID:
-                return PetEntry.CONTENT_ITEM_TYPE; // When the URI operates on a single row
-            default:
-                throw new IllegalArgumentException("Unknown URI: " + uri + " with match: " + match);
+        PetProviderMetrics.Operation operation = metrics.begin(PetProviderMetrics.GET_TYPE, match);
+        try {
+            switch (match) {
+                case PETS:
+                    return PetEntry.CONTENT_LIST_TYPE; // When the URI operates on the entire database
+                case PET_ID:
+                    return PetEntry.CONTENT_ITEM_TYPE; // When the URI operates on a single row
+                case PET_SEARCH:
+                    return PetEntry.CONTENT_LIST_TYPE; // When the URI searches the entire database
+                case PET_STATS:
+                    return PetStatsEntry.CONTENT_LIST_TYPE; // When the URI reads the statistics per gender
+                case PET_BREED_STATS:
+                    return PetStatsEntry.BREEDS_CONTENT_LIST_TYPE; // When the URI reads the top breeds
+                case PET_EXPORT:
+                    return PetEntry.EXPORT_TYPE_CSV; // When the URI exports pets, CSV unless asked otherwise
+                case PET_CHANGES:
+                    return PetChangeEntry.CONTENT_LIST_TYPE; // When the URI reads the pet changes
+                case PET_DELETED:
+                    return PetEntry.CONTENT_LIST_TYPE; // When the URI operates on the deleted pets
+                default:
+                    throw new IllegalArgumentException("Unknown URI: " + uri + " with match: " + match);
+            }
+        } catch (RuntimeException e) {
+            operation.setFailed();
+            throw e;
+        } finally {
+            operation.end();
         }
     }
 }
@@ -0,0 +1,267 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+import android.support.v4.os.TraceCompat;
+
+/**
+ * Latency histograms and counters of the pet provider operations, per operation and URI.
+ *
+ * Recording an operation costs two clock reads and a short uncontended lock, so the metrics stay
+ * on in production. Latencies are counted in power of two buckets of microseconds, which is
+ * enough to estimate percentiles without keeping every duration. Each operation is also traced
+ * as a section named after it, so it shows up in system traces.
+ */
+final class PetProviderMetrics {
+
+    /**
+     * Operations measured
+     */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int APPLY_BATCH = 5;
+    static final int GET_TYPE = 6;
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete", "apply_batch", "get_type"
+    };
+
+    /**
+     * Number of latency buckets: bucket i counts durations from 2^(i-1) up to 2^i microseconds,
+     * and the last bucket counts all longer durations
+     */
+    private static final int NB_BUCKETS = 24;
+
+    /**
+     * Name of the URIs that don't match any URI code
+     */
+    private static final String UNKNOWN_URI_NAME = "unknown";
+
+    /**
+     * Lowest URI code, and the name of each URI code from there
+     */
+    private final int firstUriCode;
+    private final String[] uriNames;
+
+    /**
+     * Counters, per operation then per URI code, the last slot being for unknown URIs
+     */
+    private final Counters[][] counters;
+
+    /**
+     * Name of the trace section of each operation and URI code
+     */
+    private final String[][] sectionNames;
+
+    /**
+     * Operation running on the current thread, so notifications can be charged to it
+     */
+    private final ThreadLocal<Operation> currentOperation = new ThreadLocal<>();
+
+    /**
+     * Time the counters were last reset
+     */
+    private long sinceMs;
+
+    /**
+     * @param firstUriCode Lowest URI code of the provider.
+     * @param uriNames     Name of each URI code, from the lowest one on.
+     */
+    PetProviderMetrics(int firstUriCode, String[] uriNames) {
+        this.firstUriCode = firstUriCode;
+        this.uriNames = uriNames;
+        counters = new Counters[OPERATION_NAMES.length][uriNames.length + 1];
+        sectionNames = new String[OPERATION_NAMES.length][uriNames.length + 1];
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int slot = 0; slot <= uriNames.length; slot++) {
+                counters[operation][slot] = new Counters();
+                sectionNames[operation][slot] = "PetProvider." + OPERATION_NAMES[operation] + " " + getUriName(slot);
+            }
+        }
+        sinceMs = System.currentTimeMillis();
+    }
+
+    private String getUriName(int slot) {
+        return slot < uriNames.length ? uriNames[slot] : UNKNOWN_URI_NAME;
+    }
+
+    /**
+     * Start measuring an operation, and open its trace section. The returned operation must be
+     * ended on the same thread.
+     *
+     * @param operation One of the operation constants.
+     * @param uriCode   URI code matched by the operation's URI, or UriMatcher.NO_MATCH.
+     */
+    Operation begin(int operation, int uriCode) {
+        int slot = uriCode - firstUriCode;
+        if (slot < 0 || slot >= uriNames.length) {
+            slot = uriNames.length;
+        }
+        TraceCompat.beginSection(sectionNames[operation][slot]);
+        Operation parent = currentOperation.get();
+        Operation started = new Operation(counters[operation][slot], parent);
+        currentOperation.set(started);
+        return started;
+    }
+
+    /**
+     * Count change notifications sent to the content resolver, charging them to the operation
+     * running on the current thread, if any.
+     */
+    void countNotifications(int nbNotifications) {
+        Operation operation = currentOperation.get();
+        if (operation != null) {
+            operation.nbNotifications += nbNotifications;
+        }
+    }
+
+    /**
+     * @return a snapshot of the counters. Each measured operation and URI, such as "query.pets",
+     * maps to a bundle of the PetContract.KEY_METRICS_* values.
+     */
+    Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        synchronized (this) {
+            snapshot.putLong(PetContract.KEY_METRICS_SINCE, sinceMs);
+        }
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int slot = 0; slot <= uriNames.length; slot++) {
+                Bundle operationSnapshot = counters[operation][slot].snapshot();
+                if (operationSnapshot != null) {
+                    snapshot.putBundle(OPERATION_NAMES[operation] + "." + getUriName(slot), operationSnapshot);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    void reset() {
+        for (Counters[] operationCounters : counters) {
+            for (Counters uriCounters : operationCounters) {
+                uriCounters.reset();
+            }
+        }
+        synchronized (this) {
+            sinceMs = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * One running operation.
+     */
+    final class Operation {
+        private final Counters counters;
+        private final Operation parent;
+        private final long startNs;
+        private int nbRows;
+        private int nbNotifications;
+        private boolean failed;
+
+        private Operation(Counters counters, Operation parent) {
+            this.counters = counters;
+            this.parent = parent;
+            startNs = System.nanoTime();
+        }
+
+        /**
+         * @param nbRows Number of rows read or written by the operation.
+         */
+        void setRowCount(int nbRows) {
+            this.nbRows = nbRows;
+        }
+
+        /**
+         * Count the operation as an error.
+         */
+        void setFailed() {
+            failed = true;
+        }
+
+        /**
+         * Record the operation, and close its trace section.
+         */
+        void end() {
+            counters.record(System.nanoTime() - startNs, nbRows, nbNotifications, failed);
+            currentOperation.set(parent);
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Counters of one operation on one URI.
+     */
+    private static final class Counters {
+        private long count;
+        private long nbErrors;
+        private long nbRows;
+        private long nbNotifications;
+        private long totalUs;
+        private long maxUs;
+        private final long[] buckets = new long[NB_BUCKETS];
+
+        synchronized void record(long durationNs, int rows, int notifications, boolean failed) {
+            long durationUs = durationNs / 1000;
+            count++;
+            if (failed) {
+                nbErrors++;
+            }
+            nbRows += rows;
+            nbNotifications += notifications;
+            totalUs += durationUs;
+            maxUs = Math.max(maxUs, durationUs);
+            buckets[Math.min(NB_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(durationUs))]++;
+        }
+
+        /**
+         * @return the counters as a bundle, or null if the operation never ran.
+         */
+        synchronized Bundle snapshot() {
+            if (count == 0) {
+                return null;
+            }
+            Bundle snapshot = new Bundle();
+            snapshot.putLong(PetContract.KEY_METRICS_COUNT, count);
+            snapshot.putLong(PetContract.KEY_METRICS_ERRORS, nbErrors);
+            snapshot.putLong(PetContract.KEY_METRICS_ROWS, nbRows);
+            snapshot.putLong(PetContract.KEY_METRICS_NOTIFICATIONS, nbNotifications);
+            snapshot.putLong(PetContract.KEY_METRICS_TOTAL_US, totalUs);
+            snapshot.putLong(PetContract.KEY_METRICS_MAX_US, maxUs);
+            snapshot.putLong(PetContract.KEY_METRICS_P50_US, percentileUs(50));
+            snapshot.putLong(PetContract.KEY_METRICS_P99_US, percentileUs(99));
+            snapshot.putLongArray(PetContract.KEY_METRICS_HISTOGRAM, buckets.clone());
+            return snapshot;
+        }
+
+        /**
+         * @return an upper bound of the given percentile: the upper end of its bucket, or the
+         * maximum duration if lower.
+         */
+        private long percentileUs(int percentile) {
+            long rank = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int bucket = 0; bucket < NB_BUCKETS - 1; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= rank) {
+                    return Math.min(maxUs, (1L << bucket) - 1);
+                }
+            }
+            return maxUs;
+        }
+
+        synchronized void reset() {
+            count = 0;
+            nbErrors = 0;
+            nbRows = 0;
+            nbNotifications = 0;
+            totalUs = 0;
+            maxUs = 0;
+            for (int bucket = 0; bucket < NB_BUCKETS; bucket++) {
+                buckets[bucket] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.android.pets.data;
+
+import android.util.LruCache;
+
+/**
+ * In-memory cache of recently read pet rows, keyed by _id, evicting the least recently used rows.
+ *
+ * Rows read before a write may only be cached if no invalidation happened since the read started.
+ * Each invalidation bumps a generation counter, so a slow read can't put a stale row back after a
+ * write has invalidated it.
+ */
+final class PetRowCache {
+
+    /**
+     * Cached rows, values in the order of the columns they were read with
+     */
+    private final LruCache<Long, Object[]> rows;
+
+    /**
+     * Number of invalidations so far
+     */
+    private long generation;
+
+    /**
+     * @param maxSize Maximum number of rows kept.
+     */
+    PetRowCache(int maxSize) {
+        rows = new LruCache<>(maxSize);
+    }
+
+    /**
+     * @return the cached row of the pet with the given _id, or null if it isn't cached.
+     */
+    Object[] get(long petId) {
+        return rows.get(petId);
+    }
+
+    /**
+     * @return the current generation, to pass to put() once a row has been read.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache a row, unless it was invalidated after the given generation.
+     *
+     * @param petId      _id of the pet.
+     * @param row        Values of the row.
+     * @param generation Generation read before the row was read from the database.
+     */
+    synchronized void put(long petId, Object[] row, long generation) {
+        if (generation == this.generation) {
+            rows.put(petId, row);
+        }
+    }
+
+    /**
+     * Drop the cached rows of the given pets.
+     */
+    synchronized void invalidate(long[] petIds) {
+        generation++;
+        for (long petId : petIds) {
+            rows.remove(petId);
+        }
+    }
+
+    /**
+     * Drop all cached rows.
+     */
+    synchronized void invalidateAll() {
+        generation++;
+        rows.evictAll();
+    }
+
+    int hitCount() {
+        return rows.hitCount();
+    }
+
+    int missCount() {
+        return rows.missCount();
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    int maxSize() {
+        return rows.maxSize();
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bounded log of the provider queries slower than a threshold, with their query plan.
+ *
+ * Only the shape of the query arguments is kept, not their values, so pet data doesn't end up in
+ * the log. The query plan is only computed for queries over the threshold, so fast queries cost a
+ * single comparison, and it's computed on a background thread, so slow queries don't get slower
+ * still. Once the log is full, each new slow query replaces the oldest one.
+ */
+final class PetSlowQueryLog {
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = PetSlowQueryLog.class.getSimpleName();
+
+    /**
+     * Thread explaining the logged queries, off the query threads
+     */
+    private final ExecutorService explainExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Logged queries, oldest first from nextEntry once the log is full, guarded by this
+     */
+    private final Bundle[] entries;
+    private int nextEntry;
+    private int nbEntries;
+
+    /**
+     * Queries taking longer than this are logged
+     */
+    private volatile long thresholdMs;
+
+    /**
+     * @param capacity    Maximum number of queries kept.
+     * @param thresholdMs Queries taking longer than this are logged.
+     */
+    PetSlowQueryLog(int capacity, long thresholdMs) {
+        entries = new Bundle[capacity];
+        this.thresholdMs = thresholdMs;
+    }
+
+    /**
+     * @return whether a query that took the given time should be logged.
+     */
+    boolean isSlow(long elapsedMs) {
+        return elapsedMs > thresholdMs;
+    }
+
+    void setThresholdMs(long thresholdMs) {
+        this.thresholdMs = thresholdMs;
+    }
+
+    long getThresholdMs() {
+        return thresholdMs;
+    }
+
+    /**
+     * Log a slow query. Its query plan is added to the entry once explained in the background.
+     *
+     * @param petDatabase Database the query ran on, to explain it.
+     * @param sql         SQL of the query.
+     * @param args        Arguments bound to the query.
+     * @param nbRows      Number of rows returned.
+     * @param elapsedMs   Time taken to run the query and fill its first window.
+     */
+    void record(final SQLiteDatabase petDatabase, final String sql, String[] args, int nbRows, long elapsedMs) {
+        final Bundle entry = new Bundle();
+        entry.putLong(PetContract.KEY_SLOW_QUERY_TIME, System.currentTimeMillis());
+        entry.putString(PetContract.KEY_SLOW_QUERY_SQL, sql);
+        entry.putStringArray(PetContract.KEY_SLOW_QUERY_ARG_SHAPES, getArgShapes(args));
+        entry.putInt(PetContract.KEY_SLOW_QUERY_ROWS, nbRows);
+        entry.putLong(PetContract.KEY_SLOW_QUERY_ELAPSED_MS, elapsedMs);
+
+        Log.w(LOG_TAG, "Slow query (" + elapsedMs + " ms, " + nbRows + " rows): " + sql);
+
+        synchronized (this) {
+            entries[nextEntry] = entry;
+            nextEntry = (nextEntry + 1) % entries.length;
+            nbEntries = Math.min(nbEntries + 1, entries.length);
+        }
+
+        // The caller may reuse its arguments once the query returns
+        final String[] explainArgs = args == null ? null : args.clone();
+        explainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String plan = explainQueryPlan(petDatabase, sql, explainArgs);
+                synchronized (PetSlowQueryLog.this) {
+                    entry.putString(PetContract.KEY_SLOW_QUERY_PLAN, plan);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return copies of the logged queries, oldest first.
+     */
+    synchronized ArrayList<Bundle> getEntries() {
+        ArrayList<Bundle> loggedEntries = new ArrayList<>(nbEntries);
+        int firstEntry = (nextEntry - nbEntries + entries.length) % entries.length;
+        for (int i = 0; i < nbEntries; i++) {
+            // The plan may still be added to the entry, so hand out a copy
+            loggedEntries.add(new Bundle(entries[(firstEntry + i) % entries.length]));
+        }
+        return loggedEntries;
+    }
+
+    /**
+     * Forget all logged queries.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = null;
+        }
+        nextEntry = 0;
+        nbEntries = 0;
+    }
+
+    /**
+     * Describe query arguments without their values: null, number, or text of some length.
+     */
+    private static String[] getArgShapes(String[] args) {
+        if (args == null) {
+            return new String[0];
+        }
+        String[] argShapes = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null) {
+                argShapes[i] = "null";
+            } else if (!args[i].isEmpty() && TextUtils.isDigitsOnly(args[i])) {
+                argShapes[i] = "number";
+            } else {
+                argShapes[i] = "text(" + args[i].length() + ")";
+            }
+        }
+        return argShapes;
+    }
+
+    /**
+     * @return the steps of the query plan, one per line.
+     */
+    private static String explainQueryPlan(SQLiteDatabase petDatabase, String sql, String[] args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor planCursor = null;
+        try {
+            planCursor = petDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            int detailColumnIndex = planCursor.getColumnIndex("detail");
+            while (planCursor.moveToNext()) {
+                if (plan.length() != 0) {
+                    plan.append('\n');
+                }
+                plan.append(planCursor.getString(detailColumnIndex));
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Cannot explain query: " + sql, e);
+        } finally {
+            if (planCursor != null) {
+                planCursor.close();
+            }
+        }
+        return plan.toString();
+    }
+}
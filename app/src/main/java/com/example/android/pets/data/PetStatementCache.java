@@ -0,0 +1,95 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Compiled statements of the single pet writes, kept from one write to the next.
+ *
+ * Each thread gets its own statements, so that binding and executing them never waits on another
+ * thread, which could be holding the database in a transaction. The statements belong to the
+ * database they were compiled for: once the helper hands out another database, they are closed
+ * and compiled again. Schema changes on the same database are handled by SQLite itself, which
+ * prepares a statement again when the schema it was prepared against changed.
+ */
+final class PetStatementCache {
+
+    /**
+     * Statement shapes
+     */
+    static final int INSERT_PET = 0;
+    static final int UPDATE_PET = 1;
+    static final int DELETE_PET = 2;
+
+    /**
+     * SQL of each statement shape
+     */
+    static final String[] SQL = {
+            // Insert one pet, with one parameter per pet attribute
+            "INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)",
+            // Update all attributes of one live pet, the _id last
+            "UPDATE " + PetEntry.TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_NAME + " = ?, " +
+                    PetEntry.COLUMN_PET_BREED + " = ?, " +
+                    PetEntry.COLUMN_PET_GENDER + " = ?, " +
+                    PetEntry.COLUMN_PET_WEIGHT + " = ? WHERE " + PetEntry._ID + " = ? AND " + PetTombstones.SQL_WHERE_LIVE,
+            // Delete one live pet, turning it into a tombstone deleted at the given time, the _id last
+            "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_DELETED_AT + " = ?" +
+                    " WHERE " + PetEntry._ID + " = ? AND " + PetTombstones.SQL_WHERE_LIVE
+    };
+
+    /**
+     * Statements of the current thread
+     */
+    private final ThreadLocal<ThreadStatements> threadStatements = new ThreadLocal<ThreadStatements>() {
+        @Override
+        protected ThreadStatements initialValue() {
+            return new ThreadStatements();
+        }
+    };
+
+    /**
+     * Get the compiled statement of the given shape for the current thread, with no bindings.
+     *
+     * @param petDatabase Database to run the statement on.
+     * @param shape       One of the statement shapes.
+     */
+    SQLiteStatement get(SQLiteDatabase petDatabase, int shape) {
+        ThreadStatements statements = threadStatements.get();
+        if (statements.database != petDatabase) {
+            statements.close();
+            statements.database = petDatabase;
+        }
+        SQLiteStatement statement = statements.statements[shape];
+        if (statement == null) {
+            statement = petDatabase.compileStatement(SQL[shape]);
+            statements.statements[shape] = statement;
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    /**
+     * Statements of one thread, and the database they were compiled for.
+     */
+    private static final class ThreadStatements {
+        private SQLiteDatabase database;
+        private final SQLiteStatement[] statements = new SQLiteStatement[SQL.length];
+
+        void close() {
+            for (int shape = 0; shape < statements.length; shape++) {
+                if (statements[shape] != null) {
+                    statements[shape].close();
+                    statements[shape] = null;
+                }
+            }
+        }
+    }
+}
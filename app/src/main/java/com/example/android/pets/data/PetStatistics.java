@@ -0,0 +1,240 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+/**
+ * Summary tables of the pets table, kept up to date by triggers on every insert, update and
+ * delete, so shelter statistics are read in constant time.
+ *
+ * The gender summary holds, per gender, the number of pets, their total weight and their maximum
+ * weight. When the heaviest pet of a gender leaves, the new maximum is found through the
+ * (gender, weight) index. The breed summary holds the number of pets per known breed.
+ *
+ * Since version 7, tombstones don't count: tombstoning a pet leaves the summaries like deleting
+ * it, restoring it like inserting it, and purging it doesn't change them.
+ */
+final class PetStatistics {
+
+    /**
+     * Summary tables and their columns
+     */
+    static final String TABLE_GENDER_STATS = "pet_gender_stats";
+    static final String TABLE_BREED_STATS = "pet_breed_stats";
+    static final String COLUMN_WEIGHT_SUM = "weight_sum";
+
+    /**
+     * Per gender statistics, with the columns of PetStatsEntry. Used as a FROM clause.
+     */
+    static final String SQL_GENDER_STATS = "(SELECT " +
+            PetEntry.COLUMN_PET_GENDER + ", " +
+            PetStatsEntry.COLUMN_PET_COUNT + ", " +
+            "CAST(" + COLUMN_WEIGHT_SUM + " AS REAL) / " + PetStatsEntry.COLUMN_PET_COUNT + " AS " + PetStatsEntry.COLUMN_AVERAGE_WEIGHT + ", " +
+            PetStatsEntry.COLUMN_MAX_WEIGHT +
+            " FROM " + TABLE_GENDER_STATS + " WHERE " + PetStatsEntry.COLUMN_PET_COUNT + " > 0)";
+
+    /**
+     * Per breed statistics, with the columns of PetStatsEntry. Used as a FROM clause.
+     */
+    static final String SQL_BREED_STATS = TABLE_BREED_STATS;
+
+    /**
+     * Aggregates of the live pets, computed the slow way, matching the summary tables
+     */
+    private static final String SQL_AGGREGATE_GENDERS = sqlAggregateGenders(PetTombstones.SQL_WHERE_LIVE);
+    private static final String SQL_AGGREGATE_BREEDS = sqlAggregateBreeds(PetTombstones.SQL_WHERE_LIVE);
+
+    /**
+     * Content of the summary tables, in the same shape as the aggregates above
+     */
+    private static final String SQL_SUMMARY_GENDERS = "SELECT " + PetEntry.COLUMN_PET_GENDER + ", " +
+            PetStatsEntry.COLUMN_PET_COUNT + ", " + COLUMN_WEIGHT_SUM + ", " + PetStatsEntry.COLUMN_MAX_WEIGHT +
+            " FROM " + TABLE_GENDER_STATS + " WHERE " + PetStatsEntry.COLUMN_PET_COUNT + " > 0";
+    private static final String SQL_SUMMARY_BREEDS = "SELECT " + PetEntry.COLUMN_PET_BREED + ", " +
+            PetStatsEntry.COLUMN_PET_COUNT + " FROM " + TABLE_BREED_STATS;
+
+    /**
+     * Empty constructor -- this class only holds static helpers.
+     */
+    private PetStatistics() {}
+
+    /**
+     * @param petSelection Selection of the pets to aggregate.
+     * @return the aggregates per gender of the selected pets.
+     */
+    private static String sqlAggregateGenders(String petSelection) {
+        return "SELECT " + PetEntry.COLUMN_PET_GENDER + ", COUNT(*), " +
+                "SUM(" + PetEntry.COLUMN_PET_WEIGHT + "), MAX(" + PetEntry.COLUMN_PET_WEIGHT + ")" +
+                " FROM " + PetEntry.TABLE_NAME + " WHERE " + petSelection + " GROUP BY " + PetEntry.COLUMN_PET_GENDER;
+    }
+
+    /**
+     * @param petSelection Selection of the pets to aggregate.
+     * @return the aggregates per known breed of the selected pets.
+     */
+    private static String sqlAggregateBreeds(String petSelection) {
+        return "SELECT " + PetEntry.COLUMN_PET_BREED + ", COUNT(*)" +
+                " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED + " <> ''" +
+                " AND " + petSelection + " GROUP BY " + PetEntry.COLUMN_PET_BREED;
+    }
+
+    /**
+     * Create the summary tables and their triggers, and fill them from the pets table, as of
+     * version 5: before tombstones, every pet counts.
+     */
+    static void createSchema(SQLiteDatabase database) {
+        database.execSQL("CREATE TABLE " + TABLE_GENDER_STATS + " (" +
+                PetEntry.COLUMN_PET_GENDER + " INTEGER PRIMARY KEY, " +
+                PetStatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL, " +
+                COLUMN_WEIGHT_SUM + " INTEGER NOT NULL, " +
+                PetStatsEntry.COLUMN_MAX_WEIGHT + " INTEGER NOT NULL);");
+        database.execSQL("CREATE TABLE " + TABLE_BREED_STATS + " (" +
+                PetEntry.COLUMN_PET_BREED + " TEXT PRIMARY KEY, " +
+                PetStatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL);");
+
+        // Top breeds are read in count order
+        database.execSQL("CREATE INDEX idx_pet_breed_stats_count ON " + TABLE_BREED_STATS +
+                " (" + PetStatsEntry.COLUMN_PET_COUNT + ");");
+
+        createTriggers(database, false);
+        fill(database, sqlAggregateGenders("1"), sqlAggregateBreeds("1"));
+    }
+
+    /**
+     * Replace the triggers with ones leaving tombstones out, and add the triggers of tombstoning
+     * and restoring pets. The summaries don't change: there are no tombstones yet.
+     */
+    static void createTombstoneTriggers(SQLiteDatabase database) {
+        for (String trigger : new String[] {
+                "pets_stats_after_insert", "pets_stats_after_delete", "pets_stats_after_update",
+                "pets_breed_stats_after_insert", "pets_breed_stats_after_delete",
+                "pets_breed_stats_after_update_old", "pets_breed_stats_after_update_new" }) {
+            database.execSQL("DROP TRIGGER " + trigger + ";");
+        }
+        createTriggers(database, true);
+    }
+
+    /**
+     * Create the triggers keeping the summary tables in sync with the pets table.
+     *
+     * @param withTombstones Whether the pets table has tombstones, to be left out of the summaries.
+     */
+    private static void createTriggers(SQLiteDatabase database, boolean withTombstones) {
+        // Only live pets count, and among them the new heaviest pet of a gender is looked for
+        String oldLive = withTombstones ? " AND old." + PetTombstones.SQL_LIVE : "";
+        String bothLive = withTombstones ? " AND old." + PetTombstones.SQL_LIVE + " AND new." + PetTombstones.SQL_LIVE : "";
+        String whenOldLive = withTombstones ? " WHEN old." + PetTombstones.SQL_LIVE : "";
+        String whenBothLive = withTombstones ? " WHEN old." + PetTombstones.SQL_LIVE + " AND new." + PetTombstones.SQL_LIVE : "";
+        String live = withTombstones ? " AND " + PetTombstones.SQL_WHERE_LIVE : "";
+
+        String addNewPet = "INSERT OR IGNORE INTO " + TABLE_GENDER_STATS + " VALUES (new." + PetEntry.COLUMN_PET_GENDER + ", 0, 0, 0); " +
+                "UPDATE " + TABLE_GENDER_STATS + " SET " +
+                PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " + 1, " +
+                COLUMN_WEIGHT_SUM + " = " + COLUMN_WEIGHT_SUM + " + new." + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                PetStatsEntry.COLUMN_MAX_WEIGHT + " = MAX(" + PetStatsEntry.COLUMN_MAX_WEIGHT + ", new." + PetEntry.COLUMN_PET_WEIGHT + ")" +
+                " WHERE " + PetEntry.COLUMN_PET_GENDER + " = new." + PetEntry.COLUMN_PET_GENDER + "; ";
+        String removeOldPet = "UPDATE " + TABLE_GENDER_STATS + " SET " +
+                PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " - 1, " +
+                COLUMN_WEIGHT_SUM + " = " + COLUMN_WEIGHT_SUM + " - old." + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                PetStatsEntry.COLUMN_MAX_WEIGHT + " = CASE WHEN old." + PetEntry.COLUMN_PET_WEIGHT + " < " + PetStatsEntry.COLUMN_MAX_WEIGHT +
+                " THEN " + PetStatsEntry.COLUMN_MAX_WEIGHT +
+                " ELSE IFNULL((SELECT MAX(" + PetEntry.COLUMN_PET_WEIGHT + ") FROM " + PetEntry.TABLE_NAME +
+                " WHERE " + PetEntry.COLUMN_PET_GENDER + " = old." + PetEntry.COLUMN_PET_GENDER + live + "), 0) END" +
+                " WHERE " + PetEntry.COLUMN_PET_GENDER + " = old." + PetEntry.COLUMN_PET_GENDER + "; ";
+        String addNewBreed = "INSERT OR IGNORE INTO " + TABLE_BREED_STATS + " VALUES (new." + PetEntry.COLUMN_PET_BREED + ", 0); " +
+                "UPDATE " + TABLE_BREED_STATS + " SET " +
+                PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " + 1" +
+                " WHERE " + PetEntry.COLUMN_PET_BREED + " = new." + PetEntry.COLUMN_PET_BREED + "; ";
+        String removeOldBreed = "UPDATE " + TABLE_BREED_STATS + " SET " +
+                PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " - 1" +
+                " WHERE " + PetEntry.COLUMN_PET_BREED + " = old." + PetEntry.COLUMN_PET_BREED + "; " +
+                "DELETE FROM " + TABLE_BREED_STATS + " WHERE " + PetEntry.COLUMN_PET_BREED + " = old." + PetEntry.COLUMN_PET_BREED +
+                " AND " + PetStatsEntry.COLUMN_PET_COUNT + " <= 0; ";
+
+        // Breeds are only counted when known: not null nor empty
+        String oldBreedKnown = "old." + PetEntry.COLUMN_PET_BREED + " <> ''";
+        String newBreedKnown = "new." + PetEntry.COLUMN_PET_BREED + " <> ''";
+        String breedChanged = "old." + PetEntry.COLUMN_PET_BREED + " IS NOT new." + PetEntry.COLUMN_PET_BREED;
+
+        // Pets are inserted live, and tombstones are purged without changing the summaries
+        database.execSQL("CREATE TRIGGER pets_stats_after_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + addNewPet + "END;");
+        database.execSQL("CREATE TRIGGER pets_stats_after_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                whenOldLive + " BEGIN " + removeOldPet + "END;");
+        database.execSQL("CREATE TRIGGER pets_stats_after_update AFTER UPDATE OF " +
+                PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + " ON " + PetEntry.TABLE_NAME +
+                whenBothLive + " BEGIN " + removeOldPet + addNewPet + "END;");
+
+        database.execSQL("CREATE TRIGGER pets_breed_stats_after_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " WHEN " + newBreedKnown + " BEGIN " + addNewBreed + "END;");
+        database.execSQL("CREATE TRIGGER pets_breed_stats_after_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                " WHEN " + oldBreedKnown + oldLive + " BEGIN " + removeOldBreed + "END;");
+        database.execSQL("CREATE TRIGGER pets_breed_stats_after_update_old AFTER UPDATE OF " + PetEntry.COLUMN_PET_BREED +
+                " ON " + PetEntry.TABLE_NAME + " WHEN " + breedChanged + " AND " + oldBreedKnown + bothLive +
+                " BEGIN " + removeOldBreed + "END;");
+        database.execSQL("CREATE TRIGGER pets_breed_stats_after_update_new AFTER UPDATE OF " + PetEntry.COLUMN_PET_BREED +
+                " ON " + PetEntry.TABLE_NAME + " WHEN " + breedChanged + " AND " + newBreedKnown + bothLive +
+                " BEGIN " + addNewBreed + "END;");
+
+        if (!withTombstones) {
+            return;
+        }
+
+        // Tombstoning a pet removes it from the summaries, restoring it adds it back
+        String deletedAtChanged = " AFTER UPDATE OF " + PetEntry.COLUMN_PET_DELETED_AT + " ON " + PetEntry.TABLE_NAME;
+        database.execSQL("CREATE TRIGGER pets_stats_after_tombstone" + deletedAtChanged +
+                " WHEN " + PetTombstones.sqlTombstoning() + " BEGIN " + removeOldPet + "END;");
+        database.execSQL("CREATE TRIGGER pets_stats_after_restore" + deletedAtChanged +
+                " WHEN " + PetTombstones.sqlRestoring() + " BEGIN " + addNewPet + "END;");
+        database.execSQL("CREATE TRIGGER pets_breed_stats_after_tombstone" + deletedAtChanged +
+                " WHEN " + PetTombstones.sqlTombstoning() + " AND " + oldBreedKnown + " BEGIN " + removeOldBreed + "END;");
+        database.execSQL("CREATE TRIGGER pets_breed_stats_after_restore" + deletedAtChanged +
+                " WHEN " + PetTombstones.sqlRestoring() + " AND " + newBreedKnown + " BEGIN " + addNewBreed + "END;");
+    }
+
+    /**
+     * Recompute the summary tables from the live pets.
+     */
+    static void rebuild(SQLiteDatabase database) {
+        fill(database, SQL_AGGREGATE_GENDERS, SQL_AGGREGATE_BREEDS);
+    }
+
+    /**
+     * Replace the content of the summary tables with the given aggregates.
+     */
+    private static void fill(SQLiteDatabase database, String sqlAggregateGenders, String sqlAggregateBreeds) {
+        database.beginTransaction();
+        try {
+            database.execSQL("DELETE FROM " + TABLE_GENDER_STATS);
+            database.execSQL("INSERT INTO " + TABLE_GENDER_STATS + " " + sqlAggregateGenders);
+            database.execSQL("DELETE FROM " + TABLE_BREED_STATS);
+            database.execSQL("INSERT INTO " + TABLE_BREED_STATS + " " + sqlAggregateBreeds);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Check the summary tables against aggregates computed from the live pets.
+     *
+     * @return true if the summary tables hold exactly the aggregates of the live pets.
+     */
+    static boolean isConsistent(SQLiteDatabase database) {
+        return countDifferences(database, SQL_AGGREGATE_GENDERS, SQL_SUMMARY_GENDERS) == 0
+                && countDifferences(database, SQL_AGGREGATE_BREEDS, SQL_SUMMARY_BREEDS) == 0;
+    }
+
+    /**
+     * Count the rows found in only one of two queries of the same shape.
+     */
+    private static long countDifferences(SQLiteDatabase database, String firstQuery, String secondQuery) {
+        return DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM (" +
+                firstQuery + " EXCEPT " + secondQuery + ")", null)
+                + DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM (" +
+                secondQuery + " EXCEPT " + firstQuery + ")", null);
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soft deletion of pets.
+ *
+ * Deleting a pet only sets its deleted_at time, which turns it into a tombstone: a single row
+ * update, however large the table, that can be undone by clearing deleted_at again. Every
+ * deletion gets its own deleted_at time, so that undoing it restores its pets and no others.
+ * Deleting many pets tombstones them in chunks, as the purge deletes them. Tombstones
+ * are left out of every query, and triggers treat tombstoning and restoring a pet as deleting and
+ * inserting it, for the full-text index, the statistics and the change log. Tombstones are
+ * physically deleted later by the purge, in small chunks, which the triggers ignore.
+ *
+ * Partial indexes need a newer SQLite than the oldest supported devices ship, so tombstones are
+ * found for the purge through a plain index on deleted_at. Queries of live pets test deleted_at
+ * through a unary +, which keeps the query planner off that index: without statistics, it would
+ * otherwise take the index for an equality on null, and read and sort every live pet to serve a
+ * single page in _id order. The other pets indexes are left as they were.
+ */
+final class PetTombstones {
+
+    /**
+     * Condition of a live pet, and of a tombstone, on a row of a trigger or a join
+     */
+    static final String SQL_LIVE = PetEntry.COLUMN_PET_DELETED_AT + " IS NULL";
+    static final String SQL_TOMBSTONE = PetEntry.COLUMN_PET_DELETED_AT + " IS NOT NULL";
+
+    /**
+     * Selection of the live pets, which can't be served by the deleted_at index
+     */
+    static final String SQL_WHERE_LIVE = "+" + SQL_LIVE;
+
+    /**
+     * Number of tombstones physically deleted per purge transaction
+     */
+    static final int PURGE_CHUNK_SIZE = 500;
+
+    /**
+     * Number of pets tombstoned per transaction when deleting many pets
+     */
+    static final int TOMBSTONE_CHUNK_SIZE = 500;
+
+    /**
+     * Last deleted_at time handed out
+     */
+    private static final AtomicLong lastDeletionTime = new AtomicLong();
+
+    /**
+     * Empty constructor -- this class only holds static helpers.
+     */
+    private PetTombstones() {}
+
+    /**
+     * Add deleted_at to the pets table and its index, and make the triggers of the full-text
+     * index, the statistics and the change log tell tombstones apart.
+     */
+    static void createSchema(SQLiteDatabase database) {
+        database.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_PET_DELETED_AT + " INTEGER;");
+
+        // Tombstones are found for the purge in deletion order
+        database.execSQL("CREATE INDEX " + PetEntry.INDEX_DELETED_AT + " ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_DELETED_AT + ");");
+
+        // Tombstones leave the full-text index when they're made, not when they're purged
+        String ftsColumns = PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED;
+        database.execSQL("DROP TRIGGER pets_fts_before_delete;");
+        database.execSQL("CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON " + PetEntry.TABLE_NAME +
+                " WHEN old." + SQL_LIVE + " BEGIN " +
+                "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;");
+        database.execSQL("CREATE TRIGGER pets_fts_before_tombstone BEFORE UPDATE OF " + PetEntry.COLUMN_PET_DELETED_AT +
+                " ON " + PetEntry.TABLE_NAME + " WHEN " + sqlTombstoning() + " BEGIN " +
+                "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;");
+        database.execSQL("CREATE TRIGGER pets_fts_after_restore AFTER UPDATE OF " + PetEntry.COLUMN_PET_DELETED_AT +
+                " ON " + PetEntry.TABLE_NAME + " WHEN " + sqlRestoring() + " BEGIN " +
+                "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, " + ftsColumns + ") VALUES (" +
+                "new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME + ", new." + PetEntry.COLUMN_PET_BREED + "); END;");
+
+        PetStatistics.createTombstoneTriggers(database);
+        PetChangeLog.createTombstoneTriggers(database);
+    }
+
+    /**
+     * @return the trigger condition of a pet being tombstoned.
+     */
+    static String sqlTombstoning() {
+        return "old." + SQL_LIVE + " AND new." + SQL_TOMBSTONE;
+    }
+
+    /**
+     * @return the trigger condition of a tombstone being restored.
+     */
+    static String sqlRestoring() {
+        return "old." + SQL_TOMBSTONE + " AND new." + SQL_LIVE;
+    }
+
+    /**
+     * @return the given selection, restricted to live pets.
+     */
+    static String whereLive(String selection) {
+        return TextUtils.isEmpty(selection) ? SQL_WHERE_LIVE : SQL_WHERE_LIVE + " AND (" + selection + ")";
+    }
+
+    /**
+     * @return the given selection, restricted to tombstones.
+     */
+    static String whereTombstone(String selection) {
+        return TextUtils.isEmpty(selection) ? SQL_TOMBSTONE : SQL_TOMBSTONE + " AND (" + selection + ")";
+    }
+
+    /**
+     * @return a deleted_at time for a new deletion: the current time, or just after the time of
+     * the previous deletion if the clock didn't move on since, so that no two deletions share it.
+     */
+    static long newDeletionTime() {
+        while (true) {
+            long lastTime = lastDeletionTime.get();
+            long newTime = Math.max(System.currentTimeMillis(), lastTime + 1);
+            if (lastDeletionTime.compareAndSet(lastTime, newTime)) {
+                return newTime;
+            }
+        }
+    }
+
+    /**
+     * @return the selection of the pets within an _id range, set by the first two arguments, and
+     * matching the given selection.
+     */
+    static String whereIdRange(String selection) {
+        String rangeSelection = PetEntry._ID + " > ? AND " + PetEntry._ID + " <= ?";
+        return TextUtils.isEmpty(selection) ? rangeSelection : rangeSelection + " AND " + selection;
+    }
+
+    /**
+     * @return the arguments of a whereIdRange() selection.
+     */
+    static String[] idRangeArgs(long afterId, long upToId, String[] selectionArgs) {
+        int nbSelectionArgs = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] rangeArgs = new String[2 + nbSelectionArgs];
+        rangeArgs[0] = String.valueOf(afterId);
+        rangeArgs[1] = String.valueOf(upToId);
+        if (nbSelectionArgs != 0) {
+            System.arraycopy(selectionArgs, 0, rangeArgs, 2, nbSelectionArgs);
+        }
+        return rangeArgs;
+    }
+
+    /**
+     * Find the next chunk of live pets to tombstone, in _id order.
+     *
+     * @param liveSelection Selection of the pets, restricted to live pets.
+     * @param afterId       _id the chunk starts after.
+     * @param upToId        _id the chunks end at.
+     * @return the _id of the last pet of the chunk, or 0 if there are no more pets to tombstone.
+     */
+    static long findTombstoneChunkEnd(SQLiteDatabase database, String liveSelection, String[] selectionArgs,
+                                      long afterId, long upToId) {
+        return DatabaseUtils.longForQuery(database, "SELECT MAX(" + PetEntry._ID + ") FROM (SELECT " +
+                        PetEntry._ID + " FROM " + PetEntry.TABLE_NAME + " WHERE " + whereIdRange(liveSelection) +
+                        " ORDER BY " + PetEntry._ID + " LIMIT " + TOMBSTONE_CHUNK_SIZE + ")",
+                idRangeArgs(afterId, upToId, selectionArgs));
+    }
+
+    /**
+     * Physically delete tombstones, PURGE_CHUNK_SIZE at a time. Outside of a transaction, each
+     * chunk commits on its own, so the purge never holds the write lock for long.
+     *
+     * @param selection     Selection of the tombstones to purge, restricted to tombstones.
+     * @param selectionArgs Arguments of the selection.
+     * @return the number of tombstones purged.
+     */
+    static int purge(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        SQLiteStatement purgeStatement = database.compileStatement("DELETE FROM " + PetEntry.TABLE_NAME +
+                " WHERE " + PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME +
+                " WHERE " + whereTombstone(selection) + " LIMIT " + PURGE_CHUNK_SIZE + ")");
+        try {
+            int nbPurged = 0;
+            while (true) {
+                if (selectionArgs != null) {
+                    purgeStatement.bindAllArgsAsStrings(selectionArgs);
+                }
+                int nbChunkPurged = purgeStatement.executeUpdateDelete();
+                nbPurged += nbChunkPurged;
+                if (nbChunkPurged < PURGE_CHUNK_SIZE) {
+                    return nbPurged;
+                }
+            }
+        } finally {
+            purgeStatement.close();
+        }
+    }
+
+    /**
+     * Physically delete the tombstones made before the given time.
+     *
+     * @return the number of tombstones purged.
+     */
+    static int purgeDeletedBefore(SQLiteDatabase database, long deletedBeforeMs) {
+        return purge(database, PetEntry.COLUMN_PET_DELETED_AT + " < ?",
+                new String[] { String.valueOf(deletedBeforeMs) });
+    }
+}
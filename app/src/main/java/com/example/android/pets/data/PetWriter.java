@@ -0,0 +1,257 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer of the pets for the UI, running the writes off the main thread.
+ *
+ * Writes run one at a time on a background thread, in the order they were queued, so the writes
+ * to a pet are never reordered. They go through PetDao, so they're validated and cached as the
+ * typed writes are. Writes queued within a short window of each other are applied as one batch,
+ * which runs in a single transaction. If the batch fails, its writes are
+ * applied again one by one, so that a bad write only fails itself. Each write reports back on the
+ * main thread.
+ */
+public final class PetWriter {
+
+    /**
+     * Tag for log messages
+     */
+    private static final String LOG_TAG = PetWriter.class.getSimpleName();
+
+    /**
+     * How long the first write of a batch waits for more writes to join it.
+     */
+    private static final long BATCH_WINDOW_MS = 20;
+
+    /**
+     * Listener told on the main thread how a write went.
+     */
+    public interface Callback {
+
+        /**
+         * @param nbPetsWritten Number of pets inserted, updated, deleted or restored by the write.
+         */
+        void onWriteDone(int nbPetsWritten);
+
+        /**
+         * @param e Why the write failed, an IllegalArgumentException for an invalid pet.
+         */
+        void onWriteFailed(Exception e);
+    }
+
+    /**
+     * Writer of the process
+     */
+    private static PetWriter instance;
+
+    /**
+     * DAO the writes are applied through, kept open for the life of the process
+     */
+    private final PetDao petDao;
+
+    /**
+     * Thread running the writes, and handler of the main thread the callbacks run on
+     */
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Writes waiting for the next batch, guarded by itself, and whether that batch is scheduled.
+     */
+    private final ArrayList<PendingWrite> pendingWrites = new ArrayList<>();
+    private boolean batchScheduled;
+
+    /**
+     * Apply the writes queued so far as one batch.
+     */
+    private final Runnable applyPendingWrites = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<PendingWrite> writes;
+            synchronized (pendingWrites) {
+                writes = new ArrayList<>(pendingWrites);
+                pendingWrites.clear();
+                batchScheduled = false;
+            }
+            applyWrites(writes);
+        }
+    };
+
+    /**
+     * @return the writer of the process.
+     */
+    public static synchronized PetWriter getInstance(Context context) {
+        if (instance == null) {
+            instance = new PetWriter(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PetWriter(Context context) {
+        petDao = new PetDao(context);
+    }
+
+    /**
+     * Queue the insert of a new pet. Its _id is set on the write thread, once inserted, so the
+     * pet must not be changed until the callback runs.
+     *
+     * @param callback Told whether the pet was inserted, may be null.
+     */
+    public void insert(final Pet pet, Callback callback) {
+        enqueue(new PendingWrite(callback) {
+            @Override
+            int apply(PetDao petDao) {
+                return petDao.insert(pet) ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * Queue the update of all the attributes of the pet with the _id of the given one. The pet
+     * must not be changed until the callback runs.
+     *
+     * @param callback Told of the number of pets updated, may be null.
+     */
+    public void update(final Pet pet, Callback callback) {
+        enqueue(new PendingWrite(callback) {
+            @Override
+            int apply(PetDao petDao) {
+                return petDao.update(pet) ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * Queue the delete of a pet, or of all pets.
+     *
+     * @param petsUri  URI of a pet, or PetEntry.CONTENT_URI for all pets.
+     * @param callback Told of the number of pets deleted, may be null. Deleted pets can be
+     *                 restored until they're purged.
+     * @return the time of the deletion, which restoreDeleted() takes to undo it.
+     */
+    public long delete(final Uri petsUri, Callback callback) {
+        final long deletedAtMs = PetTombstones.newDeletionTime();
+        enqueue(new PendingWrite(callback) {
+            @Override
+            int apply(PetDao petDao) {
+                return petDao.delete(petsUri, deletedAtMs);
+            }
+        });
+        return deletedAtMs;
+    }
+
+    /**
+     * Queue the restore of the pets of a deletion, if they weren't purged yet.
+     *
+     * @param deletedAtMs Time of the deletion to undo, as returned by delete().
+     * @param callback    Told of the number of pets restored, may be null.
+     */
+    public void restoreDeleted(final long deletedAtMs, Callback callback) {
+        enqueue(new PendingWrite(callback) {
+            @Override
+            int apply(PetDao petDao) {
+                return petDao.restoreDeleted(deletedAtMs);
+            }
+        });
+    }
+
+    /**
+     * Queue a write, starting a new batch if none is waiting.
+     */
+    private void enqueue(PendingWrite write) {
+        synchronized (pendingWrites) {
+            pendingWrites.add(write);
+            if (!batchScheduled) {
+                batchScheduled = true;
+                writeExecutor.schedule(applyPendingWrites, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Apply writes as one batch, or one by one if the batch fails.
+     */
+    private void applyWrites(final ArrayList<PendingWrite> writes) {
+        try {
+            int[] nbPetsWritten = petDao.applyBatch(new PetProvider.Batch<int[]>() {
+                @Override
+                public int[] apply() {
+                    int[] nbPetsWritten = new int[writes.size()];
+                    for (int i = 0; i < writes.size(); i++) {
+                        nbPetsWritten[i] = writes.get(i).apply(petDao);
+                    }
+                    return nbPetsWritten;
+                }
+            }, writes.size());
+            for (int i = 0; i < writes.size(); i++) {
+                postDone(writes.get(i).callback, nbPetsWritten[i]);
+            }
+        } catch (OperationApplicationException | RuntimeException e) {
+            if (writes.size() == 1) {
+                Log.w(LOG_TAG, "Pet write failed", e);
+                postFailed(writes.get(0).callback, e);
+                return;
+            }
+
+            // The whole batch was rolled back, so apply each write on its own
+            for (PendingWrite write : writes) {
+                ArrayList<PendingWrite> singleWrite = new ArrayList<>(1);
+                singleWrite.add(write);
+                applyWrites(singleWrite);
+            }
+        }
+    }
+
+    private void postDone(final Callback callback, final int nbPetsWritten) {
+        if (callback == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onWriteDone(nbPetsWritten);
+            }
+        });
+    }
+
+    private void postFailed(final Callback callback, final Exception e) {
+        if (callback == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onWriteFailed(e);
+            }
+        });
+    }
+
+    /**
+     * A queued write, and who to tell how it went.
+     */
+    private abstract static class PendingWrite {
+        final Callback callback;
+
+        PendingWrite(Callback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Apply the write, on the write thread.
+         *
+         * @return the number of pets written.
+         */
+        abstract int apply(PetDao petDao);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.pets;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a search superseded by a new one is canceled in the provider, instead of running
+ * to the end for results nobody will see.
+ *
+ * The pet provider is replaced by one whose searches run until they're canceled or released, so
+ * that the loader can be canceled while its query is running, as restarting it does.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSearchLoaderTest {
+
+    /**
+     * How long to wait for the search to start, or to end
+     */
+    private static final long TIMEOUT_MS = 5000;
+
+    private BlockingSearchProvider searchProvider;
+    private ExecutorService loadExecutor;
+
+    /**
+     * Provider whose queries wait until they're canceled or released.
+     */
+    public static final class BlockingSearchProvider extends ContentProvider {
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch queryReleased = new CountDownLatch(1);
+        volatile boolean queryCanceled;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder, CancellationSignal cancellationSignal) {
+            queryStarted.countDown();
+            try {
+                long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+                while (!queryReleased.await(10, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < deadlineMs) {
+                    if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                        queryCanceled = true;
+                        throw new android.os.OperationCanceledException();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            MatrixCursor cursor = new MatrixCursor(new String[] { PetEntry._ID, PetEntry.COLUMN_PET_NAME });
+            cursor.addRow(new Object[] { 1, "Toto" });
+            return cursor;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+            return query(uri, projection, selection, selectionArgs, sortOrder, null);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        searchProvider = Robolectric.setupContentProvider(BlockingSearchProvider.class,
+                PetContract.CONTENT_AUTHORITY);
+        loadExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        searchProvider.queryReleased.countDown();
+        loadExecutor.shutdownNow();
+    }
+
+    @Test
+    public void supersededSearchIsCanceledInTheProvider() throws Exception {
+        PetSearchLoader loader = new PetSearchLoader(RuntimeEnvironment.application,
+                PetEntry.buildSearchUri("to"), null);
+        Future<Cursor> load = startLoad(loader);
+        assertTrue(searchProvider.queryStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Restarting the loader for a new search cancels the running load
+        loader.cancelLoadInBackground();
+
+        try {
+            load.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("The superseded search completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OperationCanceledException);
+        }
+        assertTrue(searchProvider.queryCanceled);
+    }
+
+    @Test
+    public void currentSearchCompletes() throws Exception {
+        PetSearchLoader loader = new PetSearchLoader(RuntimeEnvironment.application,
+                PetEntry.buildSearchUri("to"), null);
+        Future<Cursor> load = startLoad(loader);
+        assertTrue(searchProvider.queryStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        searchProvider.queryReleased.countDown();
+
+        Cursor cursor = load.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        assertFalse(searchProvider.queryCanceled);
+
+        // Canceling once the load is over has nothing left to cancel
+        loader.cancelLoadInBackground();
+    }
+
+    /**
+     * Run the load of the loader on a background thread, as its task would.
+     */
+    private Future<Cursor> startLoad(final PetSearchLoader loader) {
+        return loadExecutor.submit(new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                return loader.loadInBackground();
+            }
+        });
+    }
+}
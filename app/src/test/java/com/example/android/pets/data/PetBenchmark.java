@@ -0,0 +1,568 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the pet provider on large datasets, run on the JVM by PetBenchmarkTest.
+ *
+ * For each dataset size, the test database is emptied and seeded with pets whose breeds, genders
+ * and weights follow a fixed, shelter-like distribution. Every operation is then run a number of
+ * times, and its throughput, p50/p99 latencies and allocations are written to a JSON report. The
+ * random seed is fixed, so two runs on the same machine can be compared from one commit to the
+ * next.
+ *
+ * All operations go through the content resolver, like the app's own. Other benchmarks time
+ * their own operations with measure(), so that all reports read the same.
+ */
+final class PetBenchmark {
+
+    /**
+     * Dataset sizes benchmarked by default
+     */
+    static final int[] DEFAULT_DATASET_SIZES = { 1000, 10000 };
+
+    /**
+     * Number of measured runs of each operation by default
+     */
+    static final int DEFAULT_ITERATIONS = 200;
+
+    /**
+     * Version of the report format, bumped whenever its fields change
+     */
+    private static final int REPORT_VERSION = 4;
+
+    /**
+     * Seed of the dataset and of the operation arguments
+     */
+    private static final long RANDOM_SEED = 20161016L;
+
+    /**
+     * Number of pets inserted per bulk insert while seeding
+     */
+    private static final int SEED_CHUNK_SIZE = 1000;
+
+    /**
+     * Number of measured full scans, which are too slow to run as often as the other operations
+     */
+    private static final int SCAN_ITERATIONS = 20;
+
+    /**
+     * Time after which a canceled scan is canceled
+     */
+    private static final long SCAN_CANCEL_DELAY_MS = 5;
+
+    /**
+     * Selection no index can serve and no pet matches, so that its query scans the whole table
+     */
+    private static final String SCAN_SELECTION = PetEntry.COLUMN_PET_NAME + " LIKE ?";
+    private static final String[] SCAN_SELECTION_ARGS = { "%no such pet%" };
+
+    /**
+     * Page size of the catalog, as in CatalogActivity
+     */
+    private static final int CATALOG_PAGE_SIZE = 50;
+
+    /**
+     * Columns shown by the catalog, as in CatalogActivity
+     */
+    private static final String[] CATALOG_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    /**
+     * Breeds of the dataset with their relative frequency and average weight in kg. The empty
+     * breed stands for pets of unknown breed.
+     */
+    private static final String[] BREEDS = {
+            "Labrador", "German Shepherd", "Terrier", "Beagle", "Bulldog", "Poodle", "Chihuahua",
+            "Tabby", "Siamese", "Maine Coon", "Persian", "Rabbit", "Hamster", ""
+    };
+    private static final int[] BREED_FREQUENCIES = { 18, 10, 12, 8, 6, 5, 7, 14, 6, 4, 3, 3, 2, 20 };
+    private static final int[] BREED_WEIGHTS = { 30, 32, 8, 10, 24, 20, 2, 4, 4, 7, 4, 2, 1, 12 };
+
+    /**
+     * Names given to pets of the dataset, suffixed with a number
+     */
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Milo", "Lola", "Rocky",
+            "Molly", "Buddy", "Sadie", "Toto", "Coco", "Oliver", "Chloe", "Simba", "Nala", "Leo"
+    };
+
+    /**
+     * An operation to benchmark.
+     */
+    interface Operation {
+
+        /**
+         * Run the operation once.
+         *
+         * @param run Number of the run, from 0.
+         */
+        void run(int run) throws Exception;
+    }
+
+    /**
+     * Throughput, latency percentiles and allocations of the runs of an operation.
+     */
+    static final class Stats {
+        final String name;
+        final int nbRuns;
+        final double opsPerSecond;
+        final long p50Us;
+        final long p99Us;
+        final long maxUs;
+        final long allocatedBytesPerOp;
+
+        /**
+         * @param durationsNs         Duration of each run, sorted by this constructor.
+         * @param allocatedBytes      Bytes allocated over all runs, or -1 if unknown.
+         */
+        Stats(String name, long[] durationsNs, long allocatedBytes) {
+            long totalNs = 0;
+            for (long durationNs : durationsNs) {
+                totalNs += durationNs;
+            }
+            Arrays.sort(durationsNs);
+            this.name = name;
+            nbRuns = durationsNs.length;
+            opsPerSecond = totalNs == 0 ? 0 : durationsNs.length * 1000000000.0 / totalNs;
+            p50Us = percentile(durationsNs, 50) / 1000;
+            p99Us = percentile(durationsNs, 99) / 1000;
+            maxUs = durationsNs.length == 0 ? 0 : durationsNs[durationsNs.length - 1] / 1000;
+            allocatedBytesPerOp = allocatedBytes < 0 || durationsNs.length == 0 ? -1 : allocatedBytes / durationsNs.length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %.0f ops/s, p50 %d us, p99 %d us, max %d us, %d bytes/op",
+                    name, opsPerSecond, p50Us, p99Us, maxUs, allocatedBytesPerOp);
+        }
+    }
+
+    /**
+     * Content resolver the operations go through
+     */
+    private final ContentResolver contentResolver;
+
+    /**
+     * Number of measured runs of each operation
+     */
+    private final int nbIterations;
+
+    /**
+     * Random source of the dataset and of the operation arguments
+     */
+    private Random random;
+
+    /**
+     * Sum of the breed frequencies
+     */
+    private final int totalBreedFrequency;
+
+    /**
+     * @param contentResolver Content resolver the operations go through.
+     * @param nbIterations    Number of measured runs of each operation.
+     */
+    PetBenchmark(ContentResolver contentResolver, int nbIterations) {
+        this.contentResolver = contentResolver;
+        this.nbIterations = nbIterations;
+        random = new Random(RANDOM_SEED);
+        int frequencySum = 0;
+        for (int frequency : BREED_FREQUENCIES) {
+            frequencySum += frequency;
+        }
+        totalBreedFrequency = frequencySum;
+    }
+
+    /**
+     * Run the benchmark on each dataset size, and write the report. The pet database is emptied.
+     *
+     * @param datasetSizes Number of pets of each dataset.
+     * @param reportWriter Writer of the JSON report, not closed by this method.
+     * @throws Exception if an operation or the report failed.
+     */
+    void run(int[] datasetSizes, Writer reportWriter) throws Exception {
+        JsonWriter jsonWriter = new JsonWriter(reportWriter);
+        jsonWriter.setIndent("  ");
+        jsonWriter.beginObject();
+        jsonWriter.name("reportVersion").value(REPORT_VERSION);
+        jsonWriter.name("timestamp").value(System.currentTimeMillis());
+        jsonWriter.name("jvm").value(System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+        jsonWriter.name("os").value(System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        jsonWriter.name("iterations").value(nbIterations);
+
+        jsonWriter.name("datasets").beginArray();
+        for (int datasetSize : datasetSizes) {
+            runDataset(datasetSize, jsonWriter);
+        }
+        jsonWriter.endArray();
+
+        jsonWriter.endObject();
+        jsonWriter.flush();
+    }
+
+    /**
+     * Seed a dataset of the given size, then benchmark every operation on it.
+     */
+    private void runDataset(int datasetSize, JsonWriter jsonWriter) throws Exception {
+        random = new Random(RANDOM_SEED);
+        System.out.println("Seeding " + datasetSize + " pets");
+
+        jsonWriter.beginObject();
+        jsonWriter.name("nbPets").value(datasetSize);
+
+        // Seed the dataset, timing it as a bulk insert benchmark
+        long seedStartMs = SystemClock.elapsedRealtime();
+        seed(datasetSize);
+        long seedDurationMs = Math.max(1, SystemClock.elapsedRealtime() - seedStartMs);
+        jsonWriter.name("seedMs").value(seedDurationMs);
+        jsonWriter.name("seedPetsPerSecond").value(datasetSize * 1000L / seedDurationMs);
+
+        long[] idRange = queryIdRange();
+        long[] insertedPetIds = new long[nbIterations];
+
+        jsonWriter.name("operations").beginArray();
+        writeStats(jsonWriter, benchmarkCatalogPage(idRange));
+        writeStats(jsonWriter, benchmarkPetQuery(idRange));
+        writeStats(jsonWriter, benchmarkFilteredQuery());
+        writeStats(jsonWriter, benchmarkSearch());
+        writeStats(jsonWriter, benchmarkScan(false));
+        writeStats(jsonWriter, benchmarkScan(true));
+        writeStats(jsonWriter, benchmarkInsert(insertedPetIds));
+        writeStats(jsonWriter, benchmarkUpdate(insertedPetIds));
+        writeStats(jsonWriter, benchmarkDelete(insertedPetIds));
+        jsonWriter.endArray();
+
+        jsonWriter.endObject();
+    }
+
+    /**
+     * Empty the pet database and fill it with the given number of pets.
+     */
+    void seed(int datasetSize) {
+
+        // Deleting pets only marks them as deleted, so purge them as well
+        contentResolver.delete(PetEntry.CONTENT_URI, null, null);
+        contentResolver.delete(PetEntry.CONTENT_DELETED_URI, null, null);
+
+        ContentValues[] chunk = new ContentValues[SEED_CHUNK_SIZE];
+        for (int i = 0; i < SEED_CHUNK_SIZE; i++) {
+            chunk[i] = new ContentValues();
+        }
+
+        int nbPetsSeeded = 0;
+        while (nbPetsSeeded < datasetSize) {
+            int chunkSize = Math.min(SEED_CHUNK_SIZE, datasetSize - nbPetsSeeded);
+            for (int i = 0; i < chunkSize; i++) {
+                fillRandomPet(chunk[i], nbPetsSeeded + i);
+            }
+            contentResolver.bulkInsert(PetEntry.CONTENT_URI,
+                    chunkSize == SEED_CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, chunkSize));
+            nbPetsSeeded += chunkSize;
+        }
+    }
+
+    /**
+     * Fill the content values with a pet drawn from the dataset distribution.
+     */
+    void fillRandomPet(ContentValues contentValues, int petNumber) {
+        int breed = randomBreed();
+
+        // Most pets have a known gender
+        int genderDraw = random.nextInt(100);
+        int gender = genderDraw < 45 ? PetEntry.GENDER_MALE
+                : genderDraw < 90 ? PetEntry.GENDER_FEMALE : PetEntry.GENDER_UNKNOWN;
+
+        // Weights spread around the breed average by about a quarter of it
+        int averageWeight = BREED_WEIGHTS[breed];
+        int weight = (int) Math.round(averageWeight + random.nextGaussian() * averageWeight / 4.0);
+
+        contentValues.put(PetEntry.COLUMN_PET_NAME, NAMES[random.nextInt(NAMES.length)] + " " + petNumber);
+        contentValues.put(PetEntry.COLUMN_PET_BREED, BREEDS[breed]);
+        contentValues.put(PetEntry.COLUMN_PET_GENDER, gender);
+        contentValues.put(PetEntry.COLUMN_PET_WEIGHT, Math.max(0, weight));
+    }
+
+    /**
+     * @return the index of a breed drawn according to BREED_FREQUENCIES.
+     */
+    private int randomBreed() {
+        int draw = random.nextInt(totalBreedFrequency);
+        int breed = 0;
+        while (draw >= BREED_FREQUENCIES[breed]) {
+            draw -= BREED_FREQUENCIES[breed];
+            breed++;
+        }
+        return breed;
+    }
+
+    /**
+     * @return the lowest and highest pet _id of the dataset.
+     */
+    long[] queryIdRange() {
+        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI,
+                new String[] { "MIN(" + PetEntry._ID + ")", "MAX(" + PetEntry._ID + ")" }, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return new long[] { cursor.getLong(0), cursor.getLong(1) };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return a random _id within the given range.
+     */
+    long randomId(long[] idRange) {
+        return idRange[0] + (long) (random.nextDouble() * (idRange[1] - idRange[0] + 1));
+    }
+
+    /**
+     * Run a query and read all of its rows, as a cursor adapter would.
+     */
+    private void readQuery(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        Cursor cursor = contentResolver.query(uri, projection, selection, selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Load a catalog page starting at a random pet, as CatalogActivity does.
+     */
+    private Stats benchmarkCatalogPage(final long[] idRange) throws Exception {
+        return measure("query_catalog_page", nbIterations, new Operation() {
+            @Override
+            public void run(int run) {
+                Uri pageUri = PetEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID, String.valueOf(randomId(idRange) - 1))
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(CATALOG_PAGE_SIZE))
+                        .build();
+                readQuery(pageUri, CATALOG_PROJECTION, null, null);
+            }
+        });
+    }
+
+    /**
+     * Query a single random pet, as EditorActivity does.
+     */
+    private Stats benchmarkPetQuery(final long[] idRange) throws Exception {
+        return measure("query_pet", nbIterations, new Operation() {
+            @Override
+            public void run(int run) {
+                readQuery(ContentUris.withAppendedId(PetEntry.CONTENT_URI, randomId(idRange)), null, null, null);
+            }
+        });
+    }
+
+    /**
+     * Query the first page of pets of a random breed and gender above a weight.
+     */
+    private Stats benchmarkFilteredQuery() throws Exception {
+        return measure("query_filtered", nbIterations, new Operation() {
+            @Override
+            public void run(int run) {
+                int breed = randomBreed();
+                Uri filteredUri = PetEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_BREED, BREEDS[breed])
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_GENDER, String.valueOf(random.nextInt(3)))
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT, String.valueOf(BREED_WEIGHTS[breed]))
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_SORT, PetEntry.SORT_NAME)
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(CATALOG_PAGE_SIZE))
+                        .build();
+                readQuery(filteredUri, CATALOG_PROJECTION, null, null);
+            }
+        });
+    }
+
+    /**
+     * Search pets by the first letters of a random name, as the catalog search box does.
+     */
+    private Stats benchmarkSearch() throws Exception {
+        return measure("query_search", nbIterations, new Operation() {
+            @Override
+            public void run(int run) {
+                String name = NAMES[random.nextInt(NAMES.length)];
+                Uri searchUri = PetEntry.buildSearchUri(name.substring(0, 1 + random.nextInt(name.length()))).buildUpon()
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(CATALOG_PAGE_SIZE * 2))
+                        .build();
+                readQuery(searchUri, CATALOG_PROJECTION, null, null);
+            }
+        });
+    }
+
+    /**
+     * Scan the whole pets table, either to the end or until it's canceled a few milliseconds in,
+     * as a loader restarted for a new search does. A canceled scan should return about as soon as
+     * it's canceled, whatever the dataset size.
+     *
+     * @param cancel Whether to cancel the scans.
+     */
+    private Stats benchmarkScan(final boolean cancel) throws Exception {
+        final ScheduledExecutorService cancelExecutor = Executors.newSingleThreadScheduledExecutor();
+        final int[] nbCanceled = new int[1];
+        try {
+            Stats stats = measure(cancel ? "query_canceled_scan" : "query_full_scan", SCAN_ITERATIONS, new Operation() {
+                @Override
+                public void run(int run) {
+                    final CancellationSignal cancellationSignal = new CancellationSignal();
+                    if (cancel) {
+                        cancelExecutor.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                cancellationSignal.cancel();
+                            }
+                        }, SCAN_CANCEL_DELAY_MS, TimeUnit.MILLISECONDS);
+                    }
+                    try {
+                        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI, CATALOG_PROJECTION,
+                                SCAN_SELECTION, SCAN_SELECTION_ARGS, null, cancellationSignal);
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    } catch (OperationCanceledException e) {
+                        nbCanceled[0]++;
+                    }
+                }
+            });
+            if (cancel) {
+                System.out.println(nbCanceled[0] + " of " + SCAN_ITERATIONS + " scans canceled before they completed");
+            }
+            return stats;
+        } finally {
+            cancelExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Insert single pets, as EditorActivity does.
+     *
+     * @param insertedPetIds Filled with the _id of the inserted pets.
+     */
+    private Stats benchmarkInsert(final long[] insertedPetIds) throws Exception {
+        final ContentValues contentValues = new ContentValues();
+        return measure("insert", nbIterations, new Operation() {
+            @Override
+            public void run(int run) {
+                fillRandomPet(contentValues, run);
+                Uri newPetUri = contentResolver.insert(PetEntry.CONTENT_URI, contentValues);
+                insertedPetIds[run] = newPetUri == null ? -1 : ContentUris.parseId(newPetUri);
+            }
+        });
+    }
+
+    /**
+     * Update single pets, as EditorActivity does.
+     */
+    private Stats benchmarkUpdate(final long[] petIds) throws Exception {
+        final ContentValues contentValues = new ContentValues();
+        return measure("update", nbIterations, new Operation() {
+            @Override
+            public void run(int run) {
+                fillRandomPet(contentValues, run);
+                contentResolver.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, petIds[run]), contentValues,
+                        null, null);
+            }
+        });
+    }
+
+    /**
+     * Delete single pets, as EditorActivity does. Deleting the pets inserted by the insert
+     * benchmark leaves the dataset as it was seeded.
+     */
+    private Stats benchmarkDelete(final long[] petIds) throws Exception {
+        return measure("delete", nbIterations, new Operation() {
+            @Override
+            public void run(int run) {
+                contentResolver.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, petIds[run]), null, null);
+            }
+        });
+    }
+
+    /**
+     * Run an operation a number of times, timing each run, and counting the bytes allocated by
+     * the current thread over all runs where the JVM can tell.
+     *
+     * @return the stats of the runs, also printed.
+     */
+    static Stats measure(String name, int nbRuns, Operation operation) throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long[] durationsNs = new long[nbRuns];
+        long allocatedBytesBefore = getAllocatedBytes(threadBean);
+        for (int run = 0; run < nbRuns; run++) {
+            long startNs = System.nanoTime();
+            operation.run(run);
+            durationsNs[run] = System.nanoTime() - startNs;
+        }
+        long allocatedBytesAfter = getAllocatedBytes(threadBean);
+        Stats stats = new Stats(name, durationsNs,
+                allocatedBytesBefore < 0 ? -1 : allocatedBytesAfter - allocatedBytesBefore);
+        System.out.println(stats);
+        return stats;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the JVM can't tell.
+     */
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Write the stats of an operation to the report.
+     */
+    private static void writeStats(JsonWriter jsonWriter, Stats stats) throws IOException {
+        jsonWriter.beginObject();
+        jsonWriter.name("name").value(stats.name);
+        jsonWriter.name("opsPerSecond").value(stats.opsPerSecond);
+        jsonWriter.name("p50Us").value(stats.p50Us);
+        jsonWriter.name("p99Us").value(stats.p99Us);
+        jsonWriter.name("maxUs").value(stats.maxUs);
+        jsonWriter.name("allocatedBytesPerOp").value(stats.allocatedBytesPerOp);
+        jsonWriter.endObject();
+    }
+
+    /**
+     * @return the given percentile of sorted durations, by the nearest rank method.
+     */
+    private static long percentile(long[] sortedDurationsNs, int percentile) {
+        if (sortedDurationsNs.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sortedDurationsNs.length);
+        return sortedDurationsNs[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.pets.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs PetBenchmark on the test database, and writes its report to
+ * build/benchmarks/pet-benchmark.json.
+ *
+ * The dataset sizes and the number of runs of each operation can be set with the
+ * petBenchmark.datasetSizes and petBenchmark.iterations system properties, e.g.
+ * ./gradlew testDebugUnitTest --tests '*PetBenchmarkTest' -DpetBenchmark.datasetSizes=1000,100000
+ *
+ * The figures are those of the JVM and of the SQLite build Robolectric runs on, not of a device,
+ * so compare them from one commit to the next rather than to device figures.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetBenchmarkTest {
+
+    @Test
+    public void runBenchmark() throws Exception {
+        Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+
+        int[] datasetSizes = getDatasetSizes();
+        int nbIterations = Integer.getInteger("petBenchmark.iterations", PetBenchmark.DEFAULT_ITERATIONS);
+
+        File reportFile = new File("build/benchmarks/pet-benchmark.json");
+        reportFile.getParentFile().mkdirs();
+        Writer reportWriter = new FileWriter(reportFile);
+        try {
+            new PetBenchmark(RuntimeEnvironment.application.getContentResolver(), nbIterations)
+                    .run(datasetSizes, reportWriter);
+        } finally {
+            reportWriter.close();
+        }
+
+        assertTrue(reportFile.length() > 0);
+        System.out.println("Benchmark report written to " + reportFile.getAbsolutePath());
+    }
+
+    /**
+     * @return the dataset sizes set by the petBenchmark.datasetSizes property, or the default ones.
+     */
+    private static int[] getDatasetSizes() {
+        String datasetSizesProperty = System.getProperty("petBenchmark.datasetSizes");
+        if (datasetSizesProperty == null || datasetSizesProperty.isEmpty()) {
+            return PetBenchmark.DEFAULT_DATASET_SIZES;
+        }
+        String[] sizes = datasetSizesProperty.split(",");
+        int[] datasetSizes = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            datasetSizes[i] = Integer.parseInt(sizes[i].trim());
+        }
+        return datasetSizes;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that readers of the pets keep reading while a writer holds a transaction open, as
+ * write-ahead logging allows.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetConcurrencyTest {
+
+    /**
+     * How long a read may take before it counts as blocked by the writer
+     */
+    private static final long READ_TIMEOUT_MS = 5000;
+
+    private PetProvider petProvider;
+    private ContentResolver contentResolver;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        petProvider = Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+        executor = Executors.newFixedThreadPool(2);
+
+        ContentValues[] pets = new ContentValues[10];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = newPet("Toto " + i);
+        }
+        contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void readerIsNotBlockedByOpenWriteTransaction() throws Exception {
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final CountDownLatch readDone = new CountDownLatch(1);
+
+        // Hold a batch transaction open, with a pet inserted, until the read is done
+        Future<Void> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                petProvider.applyBatch(new PetProvider.Batch<Void>() {
+                    @Override
+                    public Void apply() throws OperationApplicationException {
+                        petProvider.insert(PetEntry.CONTENT_URI, newPet("Uncommitted"));
+                        writeStarted.countDown();
+                        try {
+                            readDone.await();
+                        } catch (InterruptedException e) {
+                            throw new OperationApplicationException(e);
+                        }
+                        return null;
+                    }
+                }, 1);
+                return null;
+            }
+        });
+        assertTrue(writeStarted.await(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // The read completes on its own connection, and doesn't see the uncommitted pet
+        Future<Integer> reader = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return countPets();
+            }
+        });
+        assertEquals(10, (int) reader.get(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        readDone.countDown();
+        writer.get(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(11, countPets());
+    }
+
+    /**
+     * @return the number of pets listed by the provider.
+     */
+    private int countPets() {
+        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI, new String[] { PetEntry._ID }, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the content values of a new pet with the given name.
+     */
+    private static ContentValues newPet(String name) {
+        ContentValues pet = new ContentValues();
+        pet.put(PetEntry.COLUMN_PET_NAME, name);
+        pet.put(PetEntry.COLUMN_PET_BREED, "Terrier");
+        pet.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        pet.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        return pet;
+    }
+}
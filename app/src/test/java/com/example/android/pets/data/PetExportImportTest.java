@@ -0,0 +1,176 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round-trips the pets through an export and an import, in both formats, and measures how many
+ * rows per second each way goes through.
+ *
+ * The pets are exported, deleted, then imported back through the provider, and must come out as
+ * they went in. A null breed and an empty breed are both exported, and must not be mixed up.
+ *
+ * Robolectric doesn't run the writer of a provider pipe, so the exporter writes into a file
+ * instead, on the test thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetExportImportTest {
+
+    /**
+     * Pets of the test database, several import and export chunks
+     */
+    private static final int NB_PETS = 5000;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ContentResolver contentResolver;
+    private PetDbHelper petDbHelper;
+    private List<String> expectedPets;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues[] pets = new ContentValues[NB_PETS];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = new ContentValues();
+            // Names with the characters CSV has to quote
+            pets[i].put(PetEntry.COLUMN_PET_NAME, i % 10 == 0 ? "Toto, \"the\" " + i : "Toto " + i);
+            switch (i % 3) {
+                case 0:
+                    pets[i].putNull(PetEntry.COLUMN_PET_BREED);
+                    break;
+                case 1:
+                    pets[i].put(PetEntry.COLUMN_PET_BREED, "");
+                    break;
+                default:
+                    pets[i].put(PetEntry.COLUMN_PET_BREED, "Terrier");
+                    break;
+            }
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, i % 20);
+        }
+        assertEquals(NB_PETS, contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+        expectedPets = readPets();
+
+        // Opened once the provider has opened the database
+        petDbHelper = new PetDbHelper(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        petDbHelper.close();
+    }
+
+    @Test
+    public void csvRoundTripKeepsThePets() throws Exception {
+        roundTrip("csv", PetEntry.EXPORT_TYPE_CSV);
+    }
+
+    @Test
+    public void jsonRoundTripKeepsThePets() throws Exception {
+        roundTrip("json", PetEntry.EXPORT_TYPE_JSON);
+    }
+
+    /**
+     * Export the pets in the given format, delete them, import the export, and check the pets.
+     */
+    private void roundTrip(String name, String mimeType) throws Exception {
+        long exportStartNs = System.nanoTime();
+        byte[] export = export(mimeType);
+        long exportNs = System.nanoTime() - exportStartNs;
+
+        assertEquals(NB_PETS, contentResolver.delete(PetEntry.CONTENT_URI, null, null));
+        assertEquals(0, readPets().size());
+
+        PetImporter petImporter = new PetImporter(contentResolver, null);
+        long importStartNs = System.nanoTime();
+        PetImporter.Result result = PetEntry.EXPORT_TYPE_JSON.equals(mimeType)
+                ? petImporter.importJson(new ByteArrayInputStream(export))
+                : petImporter.importCsv(new ByteArrayInputStream(export));
+        long importNs = System.nanoTime() - importStartNs;
+
+        System.out.println(String.format(Locale.US, "%s: %d pets, %d bytes, export %.0f rows/s, import %.0f rows/s",
+                name, NB_PETS, export.length, NB_PETS * 1e9 / exportNs, NB_PETS * 1e9 / importNs));
+
+        assertEquals(result.getErrors().toString(), 0, result.getNbErrors());
+        assertEquals(NB_PETS, result.getNbRecordsRead());
+        assertEquals(NB_PETS, result.getNbPetsImported());
+
+        // The imported pets get new _id, in the order they were exported
+        assertEquals(expectedPets, readPets());
+    }
+
+    /**
+     * Export the live pets into a file, as the provider does into its pipe, and read the file.
+     */
+    private byte[] export(String mimeType) throws IOException {
+        File exportFile = temporaryFolder.newFile();
+        ParcelFileDescriptor output = ParcelFileDescriptor.open(exportFile,
+                ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_TRUNCATE);
+        try {
+            new PetExporter(petDbHelper, PetTombstones.whereLive(null), null)
+                    .writeDataToPipe(output, PetEntry.CONTENT_EXPORT_URI, mimeType, null, null);
+        } finally {
+            output.close();
+        }
+
+        byte[] export = new byte[(int) exportFile.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(exportFile));
+        try {
+            input.readFully(export);
+        } finally {
+            input.close();
+        }
+        return export;
+    }
+
+    /**
+     * @return every live pet but its _id, in _id order, with a null breed shown as null.
+     */
+    private List<String> readPets() {
+        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI, new String[] {
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT
+        }, null, null, PetEntry._ID);
+        try {
+            List<String> pets = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                String breed = cursor.isNull(1) ? "null" : "'" + cursor.getString(1) + "'";
+                pets.add(cursor.getString(0) + "|" + breed + "|" + cursor.getInt(2) + "|" + cursor.getInt(3));
+            }
+            return pets;
+        } finally {
+            cursor.close();
+        }
+    }
+}
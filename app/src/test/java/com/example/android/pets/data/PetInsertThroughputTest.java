@@ -0,0 +1,105 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the throughput of bulkInsert() with inserting the same pets one by one, with the
+ * full-text index, statistics and change log triggers in place. Both report rows/s.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetInsertThroughputTest {
+
+    /**
+     * Pets inserted by each measured bulk insert, and one by one
+     */
+    private static final int NB_PETS = 1000;
+
+    /**
+     * Number of measured bulk inserts
+     */
+    private static final int NB_BULK_RUNS = 10;
+
+    private ContentResolver contentResolver;
+    private PetDbHelper petDbHelper;
+    private ContentValues[] pets;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+        petDbHelper = new PetDbHelper(RuntimeEnvironment.application);
+
+        PetBenchmark petBenchmark = new PetBenchmark(contentResolver, 0);
+        pets = new ContentValues[NB_PETS];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = new ContentValues();
+            petBenchmark.fillRandomPet(pets[i], i);
+        }
+
+        // Warm up both paths, and the statements they compile
+        contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+        for (int i = 0; i < 100; i++) {
+            contentResolver.insert(PetEntry.CONTENT_URI, pets[i]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        petDbHelper.close();
+    }
+
+    @Test
+    public void bulkInsertOutpacesSingleInserts() throws Exception {
+        long nbPetsBefore = countPets();
+
+        PetBenchmark.Stats singleStats = PetBenchmark.measure("insert_single", NB_PETS, new PetBenchmark.Operation() {
+            @Override
+            public void run(int run) {
+                contentResolver.insert(PetEntry.CONTENT_URI, pets[run]);
+            }
+        });
+        PetBenchmark.Stats bulkStats = PetBenchmark.measure("insert_bulk_" + NB_PETS, NB_BULK_RUNS,
+                new PetBenchmark.Operation() {
+                    @Override
+                    public void run(int run) {
+                        contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+                    }
+                });
+
+        double singleRowsPerSecond = singleStats.opsPerSecond;
+        double bulkRowsPerSecond = bulkStats.opsPerSecond * NB_PETS;
+        System.out.println(String.format(Locale.US, "Single inserts: %.0f rows/s, bulk insert: %.0f rows/s (x%.1f)",
+                singleRowsPerSecond, bulkRowsPerSecond, bulkRowsPerSecond / singleRowsPerSecond));
+
+        // Every pet made it through the triggers
+        assertEquals(nbPetsBefore + NB_PETS + NB_BULK_RUNS * NB_PETS, countPets());
+        assertTrue(PetStatistics.isConsistent(petDbHelper.getReadableDatabase()));
+
+        // A single transaction and one notification beat one of each per pet
+        assertTrue(bulkRowsPerSecond > singleRowsPerSecond);
+    }
+
+    /**
+     * @return the number of pets in the database.
+     */
+    private long countPets() {
+        return DatabaseUtils.queryNumEntries(petDbHelper.getReadableDatabase(), PetEntry.TABLE_NAME);
+    }
+}
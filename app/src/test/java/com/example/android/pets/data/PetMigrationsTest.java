@@ -0,0 +1,203 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades a version 1 database, as shipped before the migrations, to the current version.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetMigrationsTest {
+
+    /**
+     * Pets of the version 1 database
+     */
+    private static final int NB_PETS = 5010;
+
+    /**
+     * Schema of version 1 of the pets table
+     */
+    private static final String SQL_CREATE_VERSION_1 = "CREATE TABLE " + PetEntry.TABLE_NAME + " (" +
+            PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
+            PetEntry.COLUMN_PET_BREED + " TEXT, " +
+            PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+            PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+
+    private SQLiteDatabase database;
+
+    @Before
+    public void setUp() {
+        database = SQLiteDatabase.create(null);
+        createVersion1(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void upgradeFromVersion1KeepsPets() {
+        upgrade(1, PetDbHelper.DATABASE_VERSION);
+
+        assertUpgraded(database);
+    }
+
+    @Test
+    public void upgradeRunsAgainAfterRollingBack() {
+        // An upgrade that dies halfway leaves nothing behind
+        database.beginTransaction();
+        try {
+            PetMigrations.migrate(database, 1, 4);
+        } finally {
+            database.endTransaction();
+        }
+        assertEquals(0, countSchemaObjects(database, PetEntry.INDEX_NAME));
+
+        upgrade(1, PetDbHelper.DATABASE_VERSION);
+
+        assertUpgraded(database);
+    }
+
+    @Test
+    public void upgradeResumesFromCommittedVersion() {
+        upgrade(1, 4);
+        upgrade(4, PetDbHelper.DATABASE_VERSION);
+
+        assertUpgraded(database);
+    }
+
+    @Test
+    public void openingVersion1DatabaseUpgradesIt() {
+        File databaseFile = RuntimeEnvironment.application.getDatabasePath(PetDbHelper.DATABASE_NAME);
+        databaseFile.getParentFile().mkdirs();
+        SQLiteDatabase version1Database = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+        createVersion1(version1Database);
+        version1Database.setVersion(1);
+        version1Database.close();
+
+        SQLiteDatabase upgradedDatabase = new PetDbHelper(RuntimeEnvironment.application).getWritableDatabase();
+
+        assertEquals(PetDbHelper.DATABASE_VERSION, upgradedDatabase.getVersion());
+        assertUpgraded(upgradedDatabase);
+    }
+
+    /**
+     * Upgrade the database in a single transaction, as SQLiteOpenHelper does.
+     */
+    private void upgrade(int oldVersion, int newVersion) {
+        database.beginTransaction();
+        try {
+            PetMigrations.migrate(database, oldVersion, newVersion);
+            database.setVersion(newVersion);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Create the version 1 pets table and fill it.
+     */
+    private static void createVersion1(SQLiteDatabase database) {
+        database.execSQL(SQL_CREATE_VERSION_1);
+
+        SQLiteStatement insertStatement = database.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", " +
+                PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)");
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < NB_PETS; i++) {
+                insertStatement.bindString(1, "Pet " + i);
+                if (i % 10 == 0) {
+                    insertStatement.bindNull(2);
+                } else {
+                    insertStatement.bindString(2, i % 2 == 0 ? "Terrier" : "Tabby");
+                }
+                insertStatement.bindLong(3, i % 3);
+                insertStatement.bindLong(4, i % 20);
+                insertStatement.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insertStatement.close();
+        }
+    }
+
+    /**
+     * Check that the database has the schema of the current version, and kept its pets.
+     */
+    private static void assertUpgraded(SQLiteDatabase database) {
+
+        // Every migration is recorded once
+        assertEquals(PetDbHelper.DATABASE_VERSION - 1,
+                DatabaseUtils.queryNumEntries(database, PetMigrations.TABLE_MIGRATIONS_LOG));
+
+        // Every table and index of the current version is there
+        String[] schemaObjects = {
+                PetEntry.INDEX_NAME,
+                PetEntry.INDEX_BREED,
+                PetEntry.INDEX_GENDER_WEIGHT,
+                PetEntry.INDEX_WEIGHT,
+                PetEntry.INDEX_DELETED_AT,
+                PetEntry.FTS_TABLE_NAME,
+                PetStatistics.TABLE_GENDER_STATS,
+                PetStatistics.TABLE_BREED_STATS,
+                PetChangeLog.TABLE_CHANGES
+        };
+        for (String schemaObject : schemaObjects) {
+            assertEquals(schemaObject, 1, countSchemaObjects(database, schemaObject));
+        }
+
+        // The pets are all there, live, with their attributes
+        assertEquals(NB_PETS, DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_PET_DELETED_AT + " IS NULL"));
+        Cursor cursor = database.query(PetEntry.TABLE_NAME, null, PetEntry._ID + " = ?",
+                new String[] { "11" }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Pet 10", cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)));
+            assertNull(cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED)));
+            assertEquals(1, cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER)));
+            assertEquals(10, cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT)));
+        } finally {
+            cursor.close();
+        }
+
+        // Pets that were there before the search index are all indexed, the last one included
+        assertEquals(NB_PETS / 2, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " +
+                PetEntry.FTS_TABLE_NAME + " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH 'tabby'", null));
+        assertEquals(1, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " +
+                PetEntry.FTS_TABLE_NAME + " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH '" +
+                (NB_PETS - 1) + "'", null));
+
+        // The summary tables match the pets
+        assertTrue(PetStatistics.isConsistent(database));
+    }
+
+    /**
+     * @return the number of tables, indexes or triggers with the given name.
+     */
+    private static long countSchemaObjects(SQLiteDatabase database, String name) {
+        return DatabaseUtils.queryNumEntries(database, "sqlite_master", "name = ?", new String[] { name });
+    }
+}
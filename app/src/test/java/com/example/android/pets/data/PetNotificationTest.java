@@ -0,0 +1,250 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks which URIs the provider notifies for each kind of write, and which observers hear of it:
+ * one of the pet list, registered for its descendants as the loaders do, and one of a single pet.
+ *
+ * Past ROW_NOTIFICATION_LIMIT pets, a write notifies the pet list URI once instead of each pet.
+ * The framework passes that notification on to observers of single pets as well, but Robolectric
+ * doesn't, so that case is checked on the notified URIs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetNotificationTest {
+
+    /**
+     * Pets of the test database, more than can be notified one by one
+     */
+    private static final int NB_PETS = PetProvider.ROW_NOTIFICATION_LIMIT + 36;
+
+    /**
+     * Pet watched by the single pet observer
+     */
+    private static final Uri WATCHED_PET_URI = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1);
+
+    private PetProvider petProvider;
+    private ContentResolver contentResolver;
+    private ShadowContentResolver shadowContentResolver;
+    private RecordingObserver listObserver;
+    private RecordingObserver petObserver;
+
+    /**
+     * Observer recording the URIs it was notified of.
+     */
+    private static final class RecordingObserver extends ContentObserver {
+        final List<Uri> uris = new ArrayList<>();
+
+        RecordingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            uris.add(uri);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        petProvider = Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+        shadowContentResolver = shadowOf(contentResolver);
+
+        ContentValues[] pets = new ContentValues[NB_PETS];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = newPet("Toto " + i);
+        }
+        contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+        shadowContentResolver.getNotifiedUris().clear();
+
+        listObserver = new RecordingObserver();
+        petObserver = new RecordingObserver();
+        contentResolver.registerContentObserver(PetEntry.CONTENT_URI, true, listObserver);
+        contentResolver.registerContentObserver(WATCHED_PET_URI, false, petObserver);
+    }
+
+    @After
+    public void tearDown() {
+        contentResolver.unregisterContentObserver(listObserver);
+        contentResolver.unregisterContentObserver(petObserver);
+    }
+
+    @Test
+    public void insertNotifiesTheNewPet() {
+        Uri newPetUri = contentResolver.insert(PetEntry.CONTENT_URI, newPet("New"));
+
+        assertNotified(newPetUri);
+        assertEquals(Collections.singletonList(newPetUri), listObserver.uris);
+        assertEquals(0, petObserver.uris.size());
+    }
+
+    @Test
+    public void bulkInsertNotifiesThePetListOnce() {
+        contentResolver.bulkInsert(PetEntry.CONTENT_URI, new ContentValues[] { newPet("A"), newPet("B") });
+
+        assertNotified(PetEntry.CONTENT_URI);
+        assertEquals(1, listObserver.uris.size());
+    }
+
+    @Test
+    public void updateNotifiesTheUpdatedPet() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+        contentResolver.update(WATCHED_PET_URI, values, null, null);
+
+        assertNotified(WATCHED_PET_URI);
+        assertEquals(Collections.singletonList(WATCHED_PET_URI), listObserver.uris);
+        assertEquals(Collections.singletonList(WATCHED_PET_URI), petObserver.uris);
+    }
+
+    @Test
+    public void deleteNotifiesTheDeletedPet() {
+        contentResolver.delete(WATCHED_PET_URI, null, null);
+
+        assertNotified(WATCHED_PET_URI);
+        assertEquals(Collections.singletonList(WATCHED_PET_URI), listObserver.uris);
+        assertEquals(Collections.singletonList(WATCHED_PET_URI), petObserver.uris);
+    }
+
+    @Test
+    public void updateOfFewPetsNotifiesEachPet() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+        contentResolver.update(PetEntry.CONTENT_URI, values, PetEntry._ID + " <= ?", new String[] { "3" });
+
+        assertNotified(petUri(1), petUri(2), petUri(3));
+        assertEquals(3, listObserver.uris.size());
+        assertEquals(Collections.singletonList(WATCHED_PET_URI), petObserver.uris);
+    }
+
+    @Test
+    public void updateOfManyPetsNotifiesThePetListOnce() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+        assertEquals(NB_PETS, contentResolver.update(PetEntry.CONTENT_URI, values, null, null));
+
+        assertNotified(PetEntry.CONTENT_URI);
+        assertEquals(Collections.singletonList(PetEntry.CONTENT_URI), listObserver.uris);
+    }
+
+    @Test
+    public void deleteOfManyPetsNotifiesThePetListOnce() {
+        assertEquals(NB_PETS, contentResolver.delete(PetEntry.CONTENT_URI, null, null));
+
+        assertNotified(PetEntry.CONTENT_URI);
+        assertEquals(Collections.singletonList(PetEntry.CONTENT_URI), listObserver.uris);
+    }
+
+    @Test
+    public void batchNotifiesEachPetOnceAfterCommitting() throws Exception {
+        final ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+        petProvider.applyBatch(new PetProvider.Batch<Void>() {
+            @Override
+            public Void apply() {
+                // Nothing is notified before the batch commits, and a pet written twice is notified once
+                petProvider.update(WATCHED_PET_URI, values, null, null);
+                petProvider.update(petUri(2), values, null, null);
+                petProvider.update(WATCHED_PET_URI, values, null, null);
+                assertEquals(0, listObserver.uris.size());
+                return null;
+            }
+        }, 3);
+
+        assertNotified(WATCHED_PET_URI, petUri(2));
+        assertEquals(Collections.singletonList(WATCHED_PET_URI), petObserver.uris);
+    }
+
+    @Test
+    public void batchOfManyPetsNotifiesThePetListOnce() throws Exception {
+        final ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+        petProvider.applyBatch(new PetProvider.Batch<Void>() {
+            @Override
+            public Void apply() {
+                for (int petId = 1; petId <= PetProvider.ROW_NOTIFICATION_LIMIT + 1; petId++) {
+                    petProvider.update(petUri(petId), values, null, null);
+                }
+                return null;
+            }
+        }, PetProvider.ROW_NOTIFICATION_LIMIT + 1);
+
+        assertNotified(PetEntry.CONTENT_URI);
+        assertEquals(Collections.singletonList(PetEntry.CONTENT_URI), listObserver.uris);
+    }
+
+    @Test
+    public void failedBatchNotifiesNothing() {
+        final ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+        try {
+            petProvider.applyBatch(new PetProvider.Batch<Void>() {
+                @Override
+                public Void apply() throws OperationApplicationException {
+                    petProvider.update(WATCHED_PET_URI, values, null, null);
+                    throw new OperationApplicationException("Failed after the update");
+                }
+            }, 1);
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+
+        assertNotified();
+        assertEquals(0, listObserver.uris.size());
+    }
+
+    /**
+     * Check that exactly the given URIs were notified, in order.
+     */
+    private void assertNotified(Uri... uris) {
+        List<Uri> notifiedUris = new ArrayList<>();
+        for (ShadowContentResolver.NotifiedUri notifiedUri : shadowContentResolver.getNotifiedUris()) {
+            notifiedUris.add(notifiedUri.uri);
+        }
+        assertEquals(Arrays.asList(uris), notifiedUris);
+    }
+
+    /**
+     * @return the URI of the pet with the given _id.
+     */
+    private static Uri petUri(long petId) {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, petId);
+    }
+
+    /**
+     * @return the content values of a new pet with the given name.
+     */
+    private static ContentValues newPet(String name) {
+        ContentValues pet = new ContentValues();
+        pet.put(PetEntry.COLUMN_PET_NAME, name);
+        pet.put(PetEntry.COLUMN_PET_BREED, "Terrier");
+        pet.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        pet.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        return pet;
+    }
+}
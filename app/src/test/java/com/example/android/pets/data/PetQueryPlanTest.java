@@ -0,0 +1,239 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the query plans of the main provider queries, so that a schema or query change can't
+ * silently turn them into table scans.
+ *
+ * The SQL is the one the provider actually runs, read back from its slow query log with the
+ * threshold lowered so that every query is logged. Plan details differ a little between SQLite
+ * versions, so only the table and index names they mention are checked.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetQueryPlanTest {
+
+    /**
+     * Matches the pets table as a whole word, and not the tables named after it
+     */
+    private static final Pattern PETS_TABLE = Pattern.compile("\\b" + PetEntry.TABLE_NAME + "\\b");
+
+    /**
+     * Plan step of a sort the indexes don't serve
+     */
+    private static final String TEMP_B_TREE = "USE TEMP B-TREE FOR ORDER BY";
+
+    private PetProvider petProvider;
+    private ContentResolver contentResolver;
+
+    /**
+     * Helper the plans are explained through, opened once the provider has opened the database
+     */
+    private PetDbHelper petDbHelper;
+
+    @Before
+    public void setUp() {
+        petProvider = Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues[] pets = new ContentValues[100];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, "Toto " + i);
+            pets[i].put(PetEntry.COLUMN_PET_BREED, i % 2 == 0 ? "Terrier" : "Tabby");
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, i % 20);
+        }
+        contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+
+        // Log every query, so that its SQL can be explained
+        petProvider.call(PetContract.METHOD_SET_SLOW_QUERY_THRESHOLD, "-1", null);
+    }
+
+    @After
+    public void tearDown() {
+        if (petDbHelper != null) {
+            petDbHelper.close();
+        }
+    }
+
+    @Test
+    public void keysetPageReadsThePrimaryKey() {
+        Uri pageUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID, "50")
+                .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, "20")
+                .build();
+        String plan = explain(pageUri);
+
+        assertTrue(plan, plan.contains("USING INTEGER PRIMARY KEY"));
+        assertFalse(plan, plan.contains(PetEntry.INDEX_DELETED_AT));
+    }
+
+    @Test
+    public void nameFilterReadsTheNameIndex() {
+        Uri filterUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_NAME, "toto 7")
+                .build();
+        String plan = explain(filterUri);
+
+        assertTrue(plan, plan.contains(PetEntry.INDEX_NAME));
+        assertFalse(plan, plan.contains(PetEntry.INDEX_DELETED_AT));
+    }
+
+    @Test
+    public void breedFilterReadsTheBreedIndex() {
+        Uri filterUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_BREED, "Tabby")
+                .build();
+        String plan = explain(filterUri);
+
+        assertTrue(plan, plan.contains(PetEntry.INDEX_BREED));
+        assertFalse(plan, plan.contains(PetEntry.INDEX_DELETED_AT));
+    }
+
+    @Test
+    public void genderAndWeightFilterReadsTheGenderWeightIndex() {
+        Uri filterUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_GENDER, String.valueOf(PetEntry.GENDER_MALE))
+                .appendQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT, "5")
+                .build();
+        String plan = explain(filterUri);
+
+        assertTrue(plan, plan.contains(PetEntry.INDEX_GENDER_WEIGHT + " (" + PetEntry.COLUMN_PET_GENDER + "=? AND "
+                + PetEntry.COLUMN_PET_WEIGHT + ">?)"));
+    }
+
+    @Test
+    public void weightRangeReadsTheGenderWeightIndex() {
+        Uri filterUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT, "5")
+                .appendQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT, "10")
+                .build();
+        String plan = explain(filterUri);
+
+        // Every gender is listed, so the range is searched once per gender
+        assertTrue(plan, plan.contains(PetEntry.INDEX_GENDER_WEIGHT + " (" + PetEntry.COLUMN_PET_GENDER + "=? AND "
+                + PetEntry.COLUMN_PET_WEIGHT + ">? AND " + PetEntry.COLUMN_PET_WEIGHT + "<?)"));
+    }
+
+    @Test
+    public void nameSortReadsTheNameIndex() {
+        String plan = explain(sortUri(PetEntry.SORT_NAME));
+
+        assertTrue(plan, plan.contains(PetEntry.INDEX_NAME));
+        assertFalse(plan, plan.contains(TEMP_B_TREE));
+    }
+
+    @Test
+    public void breedSortReadsTheBreedIndex() {
+        String plan = explain(sortUri(PetEntry.SORT_BREED));
+
+        assertTrue(plan, plan.contains(PetEntry.INDEX_BREED));
+        assertFalse(plan, plan.contains(TEMP_B_TREE));
+    }
+
+    @Test
+    public void weightSortReadsTheWeightIndex() {
+        String plan = explain(sortUri(PetEntry.SORT_WEIGHT));
+
+        assertTrue(plan, plan.contains(PetEntry.INDEX_WEIGHT));
+        assertFalse(plan, plan.contains(TEMP_B_TREE));
+    }
+
+    @Test
+    public void weightSortOfOneGenderReadsTheGenderWeightIndex() {
+        Uri sortUri = sortUri(PetEntry.SORT_WEIGHT).buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_GENDER, String.valueOf(PetEntry.GENDER_FEMALE))
+                .build();
+        String plan = explain(sortUri);
+
+        assertTrue(plan, plan.contains(PetEntry.INDEX_GENDER_WEIGHT));
+        assertFalse(plan, plan.contains(TEMP_B_TREE));
+    }
+
+    @Test
+    public void searchReadsTheFullTextIndex() {
+        String plan = explain(PetEntry.buildSearchUri("terr"));
+
+        assertTrue(plan, plan.contains(PetEntry.FTS_TABLE_NAME + " VIRTUAL TABLE INDEX"));
+        assertTrue(plan, plan.contains("USING INTEGER PRIMARY KEY"));
+        assertFalse(plan, plan.contains(PetEntry.INDEX_DELETED_AT));
+    }
+
+    @Test
+    public void genderStatsReadTheSummaryTable() {
+        String plan = explain(PetStatsEntry.CONTENT_URI);
+
+        assertTrue(plan, plan.contains(PetStatistics.TABLE_GENDER_STATS));
+        assertFalse(plan, PETS_TABLE.matcher(plan).find());
+    }
+
+    @Test
+    public void breedStatsReadTheCountIndex() {
+        String plan = explain(PetStatsEntry.BREEDS_CONTENT_URI);
+
+        assertTrue(plan, plan.contains("idx_pet_breed_stats_count"));
+        assertFalse(plan, PETS_TABLE.matcher(plan).find());
+    }
+
+    /**
+     * @return the pet list URI sorted as given.
+     */
+    private static Uri sortUri(String sort) {
+        return PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_SORT, sort)
+                .build();
+    }
+
+    /**
+     * Run a query through the provider, then explain the SQL it ran.
+     *
+     * @return the steps of the query plan, one per line.
+     */
+    private String explain(Uri uri) {
+        contentResolver.query(uri, null, null, null, null).close();
+
+        Bundle slowQueries = petProvider.call(PetContract.METHOD_GET_SLOW_QUERIES, null, null);
+        ArrayList<Bundle> entries = slowQueries.getParcelableArrayList(PetContract.KEY_SLOW_QUERIES);
+        String sql = entries.get(entries.size() - 1).getString(PetContract.KEY_SLOW_QUERY_SQL);
+
+        // Arguments are left unbound, they don't change the plan
+        if (petDbHelper == null) {
+            petDbHelper = new PetDbHelper(RuntimeEnvironment.application);
+        }
+        SQLiteDatabase database = petDbHelper.getReadableDatabase();
+        Cursor planCursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detailColumnIndex = planCursor.getColumnIndexOrThrow("detail");
+            while (planCursor.moveToNext()) {
+                plan.append(planCursor.getString(detailColumnIndex)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            planCursor.close();
+        }
+    }
+}
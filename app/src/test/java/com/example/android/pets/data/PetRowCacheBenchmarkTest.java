@@ -0,0 +1,159 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the single pet row cache: the latency of a query served from it against the same query
+ * read from the database, and its hit rate when most reads go to a few pets, as when the same
+ * pets are opened in the editor again and again.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetRowCacheBenchmarkTest {
+
+    /**
+     * Pets of the test database
+     */
+    private static final int NB_PETS = 1000;
+
+    /**
+     * Pets most reads go to, fewer than the cache holds, and the share of reads they get
+     */
+    private static final int NB_HOT_PETS = 50;
+    private static final int HOT_READS_PERCENT = 80;
+
+    /**
+     * Measured reads
+     */
+    private static final int NB_READS = 2000;
+
+    private PetProvider petProvider;
+    private ContentResolver contentResolver;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        petProvider = Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+        random = new Random(20161016L);
+
+        ContentValues[] pets = new ContentValues[NB_PETS];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, "Toto " + i);
+            pets[i].put(PetEntry.COLUMN_PET_BREED, i % 2 == 0 ? "Terrier" : "Tabby");
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, i % 20);
+        }
+        contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+    }
+
+    @Test
+    public void cachedQueryIsCheaperThanDatabaseQuery() throws Exception {
+        // Warm the cache up with the hot pets, and both query paths
+        for (int run = 0; run < NB_HOT_PETS * 4; run++) {
+            queryPet(hotPetUri(run), null);
+        }
+
+        PetBenchmark.Stats databaseStats = PetBenchmark.measure("query_pet_database", NB_READS,
+                new PetBenchmark.Operation() {
+                    @Override
+                    public void run(int run) {
+                        // A sort order keeps the query off the row cache
+                        queryPet(hotPetUri(run), PetEntry._ID);
+                    }
+                });
+        Bundle statsBefore = getRowCacheStats();
+        PetBenchmark.Stats cachedStats = PetBenchmark.measure("query_pet_cached", NB_READS,
+                new PetBenchmark.Operation() {
+                    @Override
+                    public void run(int run) {
+                        queryPet(hotPetUri(run), null);
+                    }
+                });
+        Bundle statsAfter = getRowCacheStats();
+
+        // Every cached query was a hit
+        assertEquals(NB_READS, countHits(statsBefore, statsAfter));
+        assertEquals(0, countMisses(statsBefore, statsAfter));
+        assertTrue(cachedStats + " vs " + databaseStats,
+                cachedStats.allocatedBytesPerOp < databaseStats.allocatedBytesPerOp);
+    }
+
+    @Test
+    public void skewedReadsMostlyHitTheCache() throws Exception {
+        Bundle statsBefore = getRowCacheStats();
+        PetBenchmark.measure("query_pet_skewed", NB_READS, new PetBenchmark.Operation() {
+            @Override
+            public void run(int run) {
+                long petId = random.nextInt(100) < HOT_READS_PERCENT
+                        ? 1 + random.nextInt(NB_HOT_PETS)
+                        : 1 + random.nextInt(NB_PETS);
+                queryPet(ContentUris.withAppendedId(PetEntry.CONTENT_URI, petId), null);
+            }
+        });
+        Bundle statsAfter = getRowCacheStats();
+
+        int nbHits = countHits(statsBefore, statsAfter);
+        int nbMisses = countMisses(statsBefore, statsAfter);
+        double hitRate = nbHits / (double) (nbHits + nbMisses);
+        System.out.println(String.format(Locale.US, "Row cache: %d hits, %d misses, hit rate %.2f, %d of %d rows",
+                nbHits, nbMisses, hitRate, statsAfter.getInt(PetContract.KEY_ROW_CACHE_SIZE),
+                statsAfter.getInt(PetContract.KEY_ROW_CACHE_MAX_SIZE)));
+
+        // The other reads evict some hot pets from the cache, so fewer than HOT_READS_PERCENT hit
+        assertEquals(NB_READS, nbHits + nbMisses);
+        assertTrue("Hit rate " + hitRate, hitRate > 0.5);
+    }
+
+    /**
+     * @return the URI of one of the hot pets, going through them in turn.
+     */
+    private static Uri hotPetUri(int run) {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + run % NB_HOT_PETS);
+    }
+
+    /**
+     * Query a pet and read its row, as the editor does.
+     */
+    private void queryPet(Uri petUri, String sortOrder) {
+        Cursor cursor = contentResolver.query(petUri, null, null, null, sortOrder);
+        try {
+            assertTrue(cursor.moveToFirst());
+            cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle getRowCacheStats() {
+        return petProvider.call(PetContract.METHOD_GET_ROW_CACHE_STATS, null, null);
+    }
+
+    private static int countHits(Bundle statsBefore, Bundle statsAfter) {
+        return statsAfter.getInt(PetContract.KEY_ROW_CACHE_HITS) - statsBefore.getInt(PetContract.KEY_ROW_CACHE_HITS);
+    }
+
+    private static int countMisses(Bundle statsBefore, Bundle statsAfter) {
+        return statsAfter.getInt(PetContract.KEY_ROW_CACHE_MISSES) - statsBefore.getInt(PetContract.KEY_ROW_CACHE_MISSES);
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the single pet writes through the compiled statements of PetStatementCache with the
+ * same writes through SQLiteDatabase.insert() and update(), which build the SQL, the selection and
+ * its arguments, and compile the statement, on every call.
+ *
+ * All writes of a measurement run in one transaction, so that the commits don't drown the cost of
+ * compiling and binding.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetStatementCacheBenchmarkTest {
+
+    /**
+     * Pets of the test database, each updated once per measurement
+     */
+    private static final int NB_PETS = 2000;
+
+    /**
+     * Warm-up runs of each write, not measured
+     */
+    private static final int NB_WARM_UP_RUNS = 200;
+
+    private PetDbHelper petDbHelper;
+    private SQLiteDatabase petDatabase;
+    private PetStatementCache statementCache;
+    private String[] names;
+
+    @Before
+    public void setUp() {
+        petDbHelper = new PetDbHelper(RuntimeEnvironment.application);
+        petDatabase = petDbHelper.getWritableDatabase();
+        statementCache = new PetStatementCache();
+
+        names = new String[NB_PETS];
+        for (int i = 0; i < NB_PETS; i++) {
+            names[i] = "Toto " + i;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        petDbHelper.close();
+    }
+
+    @Test
+    public void compiledInsertIsCheaperThanInsertWithValues() throws Exception {
+        PetBenchmark.Stats valuesStats = measureInTransaction("insert_values", new PetBenchmark.Operation() {
+            @Override
+            public void run(int run) {
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_NAME, names[run]);
+                values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
+                values.put(PetEntry.COLUMN_PET_GENDER, run % 3);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, run % 20);
+                petDatabase.insert(PetEntry.TABLE_NAME, null, values);
+            }
+        });
+        PetBenchmark.Stats compiledStats = measureInTransaction("insert_compiled", new PetBenchmark.Operation() {
+            @Override
+            public void run(int run) {
+                SQLiteStatement insertStatement = statementCache.get(petDatabase, PetStatementCache.INSERT_PET);
+                insertStatement.bindString(1, names[run]);
+                insertStatement.bindString(2, "Terrier");
+                insertStatement.bindLong(3, run % 3);
+                insertStatement.bindLong(4, run % 20);
+                insertStatement.executeInsert();
+            }
+        });
+
+        assertCheaper(compiledStats, valuesStats);
+    }
+
+    @Test
+    public void compiledUpdateIsCheaperThanUpdateWithSelection() throws Exception {
+        seed();
+
+        PetBenchmark.Stats selectionStats = measureInTransaction("update_selection", new PetBenchmark.Operation() {
+            @Override
+            public void run(int run) {
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_NAME, names[run]);
+                values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+                values.put(PetEntry.COLUMN_PET_GENDER, run % 3);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, run % 20);
+                petDatabase.update(PetEntry.TABLE_NAME, values,
+                        PetTombstones.whereLive(PetEntry._ID + "=?"), new String[] { String.valueOf(run + 1) });
+            }
+        });
+        PetBenchmark.Stats compiledStats = measureInTransaction("update_compiled", new PetBenchmark.Operation() {
+            @Override
+            public void run(int run) {
+                SQLiteStatement updateStatement = statementCache.get(petDatabase, PetStatementCache.UPDATE_PET);
+                updateStatement.bindString(1, names[run]);
+                updateStatement.bindString(2, "Tabby");
+                updateStatement.bindLong(3, run % 3);
+                updateStatement.bindLong(4, run % 20);
+                updateStatement.bindLong(5, run + 1);
+                updateStatement.executeUpdateDelete();
+            }
+        });
+
+        assertCheaper(compiledStats, selectionStats);
+    }
+
+    /**
+     * Insert NB_PETS pets, so that their _id run from 1 to NB_PETS.
+     */
+    private void seed() {
+        petDatabase.beginTransaction();
+        try {
+            SQLiteStatement insertStatement = statementCache.get(petDatabase, PetStatementCache.INSERT_PET);
+            for (int i = 0; i < NB_PETS; i++) {
+                insertStatement.bindString(1, names[i]);
+                insertStatement.bindString(2, "Terrier");
+                insertStatement.bindLong(3, i % 3);
+                insertStatement.bindLong(4, i % 20);
+                insertStatement.executeInsert();
+            }
+            petDatabase.setTransactionSuccessful();
+        } finally {
+            petDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Warm a write up, then measure it once per pet, all in a transaction rolled back afterwards.
+     */
+    private PetBenchmark.Stats measureInTransaction(String name, PetBenchmark.Operation operation)
+            throws Exception {
+        petDatabase.beginTransaction();
+        try {
+            for (int run = 0; run < NB_WARM_UP_RUNS; run++) {
+                operation.run(run);
+            }
+            return PetBenchmark.measure(name, NB_PETS, operation);
+        } finally {
+            petDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Check that the compiled writes allocate less than the others.
+     */
+    private static void assertCheaper(PetBenchmark.Stats compiledStats, PetBenchmark.Stats otherStats) {
+        if (compiledStats.allocatedBytesPerOp >= 0) {
+            assertTrue(compiledStats + " vs " + otherStats,
+                    compiledStats.allocatedBytesPerOp < otherStats.allocatedBytesPerOp);
+        }
+    }
+}
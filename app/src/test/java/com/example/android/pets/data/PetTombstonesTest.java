@@ -0,0 +1,181 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Deletes, restores and purges pets through the provider.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetTombstonesTest {
+
+    /**
+     * Pets of the test database, enough for deleting them all to take several chunks
+     */
+    private static final int NB_PETS = 2 * PetTombstones.TOMBSTONE_CHUNK_SIZE + 10;
+
+    private PetProvider petProvider;
+    private ContentResolver contentResolver;
+    private PetDbHelper petDbHelper;
+
+    @Before
+    public void setUp() {
+        petProvider = Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+        petDbHelper = new PetDbHelper(RuntimeEnvironment.application);
+
+        ContentValues[] pets = new ContentValues[NB_PETS];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, "Toto " + i);
+            pets[i].put(PetEntry.COLUMN_PET_BREED, i % 2 == 0 ? "Terrier" : "Tabby");
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            pets[i].put(PetEntry.COLUMN_PET_WEIGHT, i % 20);
+        }
+        contentResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+    }
+
+    @After
+    public void tearDown() {
+        petDbHelper.close();
+    }
+
+    @Test
+    public void deleteAllTombstonesEveryPetInChunks() {
+        assertEquals(NB_PETS, contentResolver.delete(PetEntry.CONTENT_URI, null, null));
+
+        SQLiteDatabase database = petDbHelper.getReadableDatabase();
+        assertEquals(0, countLivePets());
+        assertEquals(NB_PETS, DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME));
+
+        // Every chunk was marked with the time of the same deletion
+        assertEquals(1, DatabaseUtils.longForQuery(database, "SELECT COUNT(DISTINCT " +
+                PetEntry.COLUMN_PET_DELETED_AT + ") FROM " + PetEntry.TABLE_NAME, null));
+
+        // The triggers ran for every chunk
+        assertEquals(0, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " + PetEntry.FTS_TABLE_NAME +
+                " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH 'toto'", null));
+        assertTrue(PetStatistics.isConsistent(database));
+    }
+
+    @Test
+    public void deleteWithSelectionOnlyTombstonesMatchingPets() {
+        int nbDeleted = contentResolver.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_PET_BREED + " = ?",
+                new String[] { "Tabby" });
+
+        assertEquals(NB_PETS / 2, nbDeleted);
+        assertEquals(NB_PETS - NB_PETS / 2, countLivePets());
+        assertTrue(PetStatistics.isConsistent(petDbHelper.getReadableDatabase()));
+    }
+
+    @Test
+    public void deleteAllInFailedBatchRollsBack() {
+        try {
+            petProvider.applyBatch(new PetProvider.Batch<Void>() {
+                @Override
+                public Void apply() throws OperationApplicationException {
+                    petProvider.delete(PetEntry.CONTENT_URI, null, null);
+                    throw new OperationApplicationException("Failed after the delete");
+                }
+            }, 1);
+            fail();
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+
+        assertEquals(NB_PETS, countLivePets());
+    }
+
+    @Test
+    public void deletionTimesAreUnique() {
+        assertNotEquals(PetTombstones.newDeletionTime(), PetTombstones.newDeletionTime());
+    }
+
+    @Test
+    public void restoreOnlyUndoesItsDeletion() {
+        PetDao petDao = new PetDao(RuntimeEnvironment.application);
+        try {
+            // A pet deleted before, and one inserted and deleted after, the deletion to undo
+            Uri earlierPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1);
+            assertEquals(1, petDao.delete(earlierPetUri));
+            long deletedAtMs = PetTombstones.newDeletionTime();
+            assertEquals(NB_PETS - 1, petDao.delete(PetEntry.CONTENT_URI, deletedAtMs));
+            Pet laterPet = new Pet("Later", null, PetEntry.GENDER_UNKNOWN, 3);
+            assertTrue(petDao.insert(laterPet));
+            assertEquals(1, petDao.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, laterPet.getId())));
+
+            assertEquals(NB_PETS - 1, petDao.restoreDeleted(deletedAtMs));
+
+            assertEquals(NB_PETS - 1, countLivePets());
+            assertEquals(0, countLivePets(PetEntry._ID + " = ?", 1));
+            assertEquals(0, countLivePets(PetEntry._ID + " = ?", laterPet.getId()));
+            assertTrue(PetStatistics.isConsistent(petDbHelper.getReadableDatabase()));
+        } finally {
+            petDao.close();
+        }
+    }
+
+    @Test
+    public void deletingTombstonesPurgesThem() {
+        contentResolver.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1), null, null);
+        contentResolver.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, 2), null, null);
+
+        assertEquals(2, contentResolver.delete(PetEntry.CONTENT_DELETED_URI, null, null));
+
+        SQLiteDatabase database = petDbHelper.getReadableDatabase();
+        assertEquals(NB_PETS - 2, DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME));
+        assertEquals(NB_PETS - 2, countLivePets());
+    }
+
+    @Test
+    public void purgeOnlyDeletesOldTombstones() {
+        long deletedAtMs = PetTombstones.newDeletionTime();
+        petProvider.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_PET_BREED + " = ?", new String[] { "Tabby" },
+                deletedAtMs);
+        petProvider.delete(PetEntry.CONTENT_URI, null, null);
+
+        SQLiteDatabase database = petDbHelper.getWritableDatabase();
+        assertEquals(NB_PETS / 2, PetTombstones.purgeDeletedBefore(database, deletedAtMs + 1));
+
+        // The younger tombstones are kept, and can still be restored
+        assertEquals(NB_PETS - NB_PETS / 2, DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME));
+        assertEquals(0, countLivePets());
+        assertTrue(PetStatistics.isConsistent(database));
+    }
+
+    /**
+     * @return the number of live pets matching the selection, whose argument is a number.
+     */
+    private long countLivePets(String selection, long selectionArg) {
+        return DatabaseUtils.queryNumEntries(petDbHelper.getReadableDatabase(), PetEntry.TABLE_NAME,
+                PetTombstones.whereLive(selection), new String[] { String.valueOf(selectionArg) });
+    }
+
+    /**
+     * @return the number of live pets.
+     */
+    private long countLivePets() {
+        return DatabaseUtils.queryNumEntries(petDbHelper.getReadableDatabase(), PetEntry.TABLE_NAME,
+                PetTombstones.SQL_WHERE_LIVE);
+    }
+}